@@ -0,0 +1,52 @@
+package flowig;
+
+import java.awt.CompositeContext;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//############################################################################
+// blending a flow image onto a frame
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class BlendBenchmark {
+    @Param({"VGA", "1080p", "4K"})
+    public String resolution;
+    
+    @Param({"MULTIPLY", "AVERAGE", "SCREEN", "OVERLAY"})
+    public String mode;
+    
+    private BufferedImage src;
+    private BufferedImage dst;
+    private CompositeContext context;
+    
+    @Setup
+    public void setUp() {
+        src = Frames.frame(resolution, 0).getBufferedImage();
+        dst = Frames.frame(resolution, 1).getBufferedImage();
+        final ColorModel cm = ColorModel.getRGBdefault();
+        context = Flowig_.BlendComposite.getInstance(
+                Flowig_.BlendComposite.BlendingMode.valueOf(mode)).createContext(cm, cm, null);
+    }
+    
+    @Benchmark
+    public BufferedImage compose() {
+        context.compose(src.getRaster(), dst.getRaster(), dst.getRaster());
+        return dst;
+    }
+}
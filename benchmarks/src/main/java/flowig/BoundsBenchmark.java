@@ -0,0 +1,56 @@
+package flowig;
+
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//############################################################################
+// marker detection, full scan and tracked over a moving sequence
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class BoundsBenchmark {
+    static final int FRAMES = 8;
+    
+    @Param({"VGA", "1080p", "4K"})
+    public String resolution;
+    
+    private final ImageProcessor[] frames = new ImageProcessor[FRAMES];
+    private Flowig_.BoundsTracker tracker;
+    private int next = 0;
+    
+    @Setup
+    public void setUp() {
+        for (int t = 0; t < FRAMES; ++t) {
+            frames[t] = Frames.frame(resolution, t).getProcessor();
+        }
+        tracker = new Flowig_.BoundsTracker(Frames.MARKER);
+    }
+    
+    @Benchmark
+    public Rectangle getBounds() {
+        return Flowig_.getBounds(frames[0], Frames.MARKER);
+    }
+    
+    // the sequence restarts every FRAMES frames, which costs one full scan
+    @Benchmark
+    public Rectangle trackBounds() {
+        final Rectangle bounds = tracker.next(frames[next]);
+        next = (next + 1) % FRAMES;
+        return bounds;
+    }
+}
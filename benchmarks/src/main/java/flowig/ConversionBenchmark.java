@@ -0,0 +1,68 @@
+package flowig;
+
+import ij.ImagePlus;
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//############################################################################
+// ImagePlus <-> Mat, direct bridge vs. the JavaCV converter path
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+    @Param({"VGA", "1080p", "4K"})
+    public String resolution;
+    
+    private ImagePlus img;
+    private Mat bgr;
+    
+    @Setup
+    public void setUp() {
+        img = Frames.frame(resolution, 0);
+        bgr = Flowig_.toMat(img);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        bgr.release();
+    }
+    
+    @Benchmark
+    public Mat toMat() {
+        final Mat mat = Flowig_.toMat(img);
+        mat.release();
+        return mat;
+    }
+    
+    @Benchmark
+    public Mat toMatConverter() {
+        final Mat mat = Flowig_.toMatConverter(img);
+        mat.release();
+        return mat;
+    }
+    
+    @Benchmark
+    public ImagePlus toImagePlus() {
+        return Flowig_.toImagePlus(bgr, "");
+    }
+    
+    @Benchmark
+    public ImagePlus toImagePlusConverter() {
+        return Flowig_.toImagePlusConverter(bgr, "");
+    }
+}
@@ -0,0 +1,78 @@
+package flowig;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//############################################################################
+// a frame file to the gray Mat the flow path starts from: through ImagePlus
+// or decoded straight to gray
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+    @Param({"VGA", "1080p", "4K"})
+    public String resolution;
+    
+    @Param({"png", "jpg", "tif"})
+    public String format;
+    
+    private File file;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("flowig-frame", "." + format);
+        final FileSaver saver = new FileSaver(Frames.frame(resolution, 0));
+        switch (format) {
+            case "jpg":
+                saver.saveAsJpeg(file.getPath());
+                break;
+            case "tif":
+                saver.saveAsTiff(file.getPath());
+                break;
+            default:
+                saver.saveAsPng(file.getPath());
+                break;
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+    
+    // FrameSource.iterator and prepareFrame without downscaling
+    @Benchmark
+    public Mat imagePlus() {
+        final Mat gray = Flowig_.prepareFrame(new ImagePlus(file.getPath()), 0);
+        gray.release();
+        return gray;
+    }
+    
+    // FrameSource.grayIterator and FramePyramid.of without downscaling
+    @Benchmark
+    public Mat gray() {
+        final Mat gray = Flowig_.prepareGray(Flowig_.FrameSource.decodeGray(file.getPath()), 0, null);
+        gray.release();
+        return gray;
+    }
+}
@@ -0,0 +1,101 @@
+package flowig;
+
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//############################################################################
+// flow computation of one frame pair, per FlowType, resolution and scaleSize
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class FlowBenchmark {
+    @Param({"VGA", "1080p", "4K"})
+    public String resolution;
+    
+    @Param({"0", "1", "2"})
+    public int scaleSize;
+    
+    @Param({"DIS", "FarneBack", "SparseToDense", "DeepFlow", "DualTVL1"})
+    public Flowig_.FlowType flowType;
+    
+    // run others with e.g. -p preset=UltraFast,Fast,Medium
+    @Param({"Default"})
+    public Flowig_.FlowPreset preset;
+    
+    private Flowig_.FlowSetup setup;
+    // downscaled BGR pair, copied to mat0 and mat1 before each makeFlow
+    // as that converts and equalizes its inputs in place
+    private Mat in0;
+    private Mat in1;
+    private Mat mat0;
+    private Mat mat1;
+    private Mat gray0;
+    private Mat gray1;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        in0 = Flowig_.toMat(Frames.frame(resolution, 0));
+        in1 = Flowig_.toMat(Frames.frame(resolution, 1));
+        for (int i = 0; i < scaleSize; ++i) {
+            opencv_imgproc.pyrDown(in0, in0);
+            opencv_imgproc.pyrDown(in1, in1);
+        }
+        mat0 = new Mat();
+        mat1 = new Mat();
+        gray0 = Flowig_.prepareFrame(Frames.frame(resolution, 0), scaleSize);
+        gray1 = Flowig_.prepareFrame(Frames.frame(resolution, 1), scaleSize);
+        setup = new Flowig_.FlowSetup(flowType, preset, false);
+    }
+    
+    // the copy is small next to the flow it feeds, so the per invocation
+    // overhead of JMH does not matter here
+    @Setup(Level.Invocation)
+    public void copyInputs() {
+        in0.copyTo(mat0);
+        in1.copyTo(mat1);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        in0.release();
+        in1.release();
+        mat0.release();
+        mat1.release();
+        gray0.release();
+        gray1.release();
+        Flowig_.FLOW_POOL.release();
+    }
+    
+    // conversion to gray, equalization and flow of a downscaled BGR pair
+    @Benchmark
+    public Mat makeFlow() {
+        final Mat flow = Flowig_.makeFlow(mat0, mat1, flowType);
+        flow.release();
+        return flow;
+    }
+    
+    // flow of an already prepared pair, as in getOpticalFlowBasedMovement
+    @Benchmark
+    public Mat computeFlow() {
+        final Mat flow = Flowig_.computeFlow(gray0, gray1, setup, null);
+        flow.release();
+        return flow;
+    }
+}
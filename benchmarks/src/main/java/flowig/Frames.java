@@ -0,0 +1,70 @@
+package flowig;
+
+import ij.ImagePlus;
+import ij.process.ColorProcessor;
+import java.util.Random;
+
+//############################################################################
+// synthetic frames, so the benchmarks need no data on disk
+final class Frames {
+    // color of the marker drawn into every frame (see Flowig_.boundsColor)
+    static final int MARKER = 0xff_ff_00_ff;
+    // size of the texture cells the pattern is made of
+    static final int CELL = 8;
+    
+    private Frames() {
+    }
+    
+    // width and height of VGA, 1080p or 4K
+    static int[] size(final String resolution) {
+        switch (resolution) {
+            case "VGA":
+                return new int[]{640, 480};
+            case "1080p":
+                return new int[]{1920, 1080};
+            case "4K":
+                return new int[]{3840, 2160};
+            default:
+                throw new IllegalArgumentException("unknown resolution " + resolution);
+        }
+    }
+    
+    // frame t of a sequence: a random texture moving by (3, 1) pixels per
+    // frame and a marker square moving by (5, 2) pixels per frame
+    static ImagePlus frame(final int w, final int h, final int t) {
+        final ColorProcessor cp = new ColorProcessor(w, h);
+        final int[] pixels = (int[]) cp.getPixels();
+        
+        // the texture repeats, so every frame is an exact shift of frame 0
+        final int cellsX = w / CELL + 1;
+        final int cellsY = h / CELL + 1;
+        final int[] cells = new int[cellsX * cellsY];
+        final Random random = new Random(42);
+        for (int i = 0; i < cells.length; ++i) {
+            cells[i] = random.nextInt(256);
+        }
+        for (int y = 0; y < h; ++y) {
+            final int cy = Math.floorMod(y - t, cellsY * CELL) / CELL;
+            for (int x = 0; x < w; ++x) {
+                final int cx = Math.floorMod(x - 3 * t, cellsX * CELL) / CELL;
+                final int v = cells[cy * cellsX + cx];
+                pixels[y * w + x] = 0xff000000 | (v << 16) | (v << 8) | v;
+            }
+        }
+        
+        final int side = Math.max(8, h / 16);
+        final int mx = (w / 4 + 5 * t) % (w - side);
+        final int my = (h / 4 + 2 * t) % (h - side);
+        for (int y = my; y < my + side; ++y) {
+            for (int x = mx; x < mx + side; ++x) {
+                pixels[y * w + x] = MARKER;
+            }
+        }
+        return new ImagePlus("frame " + t, cp);
+    }
+    
+    static ImagePlus frame(final String resolution, final int t) {
+        final int[] size = size(resolution);
+        return frame(size[0], size[1], t);
+    }
+}
@@ -0,0 +1,46 @@
+package flowig;
+
+import ij.ImagePlus;
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//############################################################################
+// per frame preprocessing (toMat, pyrDown, gray, equalizeHist)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class PrepareBenchmark {
+    @Param({"VGA", "1080p", "4K"})
+    public String resolution;
+    
+    @Param({"0", "1", "2"})
+    public int scaleSize;
+    
+    private ImagePlus frame;
+    
+    @Setup
+    public void setUp() {
+        frame = Frames.frame(resolution, 0);
+    }
+    
+    @Benchmark
+    public Mat prepareFrame() {
+        final Mat gray = Flowig_.prepareFrame(frame, scaleSize);
+        gray.release();
+        return gray;
+    }
+}
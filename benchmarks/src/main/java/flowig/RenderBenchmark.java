@@ -0,0 +1,74 @@
+package flowig;
+
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//############################################################################
+// flow visualization and legend
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+    @Param({"VGA", "1080p", "4K"})
+    public String resolution;
+    
+    // 0 determines the range from the flow itself
+    @Param({"100", "0"})
+    public float maxMotion;
+    
+    private final Flowig_ flowig = new Flowig_();
+    private Mat flow;
+    
+    // a vortex around the frame center, magnitudes up to ~50 pixels
+    @Setup
+    public void setUp() {
+        final int[] size = Frames.size(resolution);
+        final int w = size[0];
+        final int h = size[1];
+        flow = new Mat(h, w, opencv_core.CV_32FC2);
+        final float[] row = new float[2 * w];
+        for (int y = 0; y < h; ++y) {
+            for (int x = 0; x < w; ++x) {
+                row[2 * x] = -(y - h / 2f) * 50f / h;
+                row[2 * x + 1] = (x - w / 2f) * 50f / w;
+            }
+            new FloatPointer(flow.ptr(y)).put(row);
+        }
+    }
+    
+    @TearDown
+    public void tearDown() {
+        flow.release();
+    }
+    
+    @Benchmark
+    public Mat drawOpticalFlow() {
+        final Mat img = flowig.drawOpticalFlow(flow, maxMotion, true, true);
+        img.release();
+        return img;
+    }
+    
+    @Benchmark
+    public Mat drawFlowLegend() {
+        final Mat img = flowig.drawFlowLegend(512, 512, 512, true, true);
+        img.release();
+        return img;
+    }
+}
@@ -0,0 +1,68 @@
+package flowig;
+
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//############################################################################
+// sparse tracking (SparseLK) of prepared frames, per resolution and scaleSize
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class TrackBenchmark {
+    @Param({"VGA", "1080p", "4K"})
+    public String resolution;
+    
+    @Param({"0", "1", "2"})
+    public int scaleSize;
+    
+    @Param({"500"})
+    public int features;
+    
+    private Mat gray0;
+    private Mat gray1;
+    private Flowig_.PointTracker tracker;
+    private int frame = 0;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        gray0 = Flowig_.prepareFrame(Frames.frame(resolution, 0), scaleSize);
+        gray1 = Flowig_.prepareFrame(Frames.frame(resolution, 1), scaleSize);
+        tracker = new Flowig_.PointTracker(features, 0.5f);
+        tracker.next(gray0);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        gray0.release();
+        gray1.release();
+    }
+    
+    // one frame step: the pair is tracked back and forth, so the points
+    // stay and no detection runs
+    @Benchmark
+    public int track() {
+        return tracker.next((++frame & 1) != 0 ? gray1 : gray0);
+    }
+    
+    // features of a frame from scratch
+    @Benchmark
+    public int detect() {
+        return new Flowig_.PointTracker(features, 0.5f).next(gray0);
+    }
+}
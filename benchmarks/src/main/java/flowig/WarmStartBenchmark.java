@@ -0,0 +1,69 @@
+package flowig;
+
+import java.util.concurrent.TimeUnit;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//############################################################################
+// flow of pair (1, 2), cold or seeded with the flow of pair (0, 1)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class WarmStartBenchmark {
+    @Param({"VGA", "1080p"})
+    public String resolution;
+    
+    @Param({"1"})
+    public int scaleSize;
+    
+    @Param({"DIS", "FarneBack", "DualTVL1"})
+    public Flowig_.FlowType flowType;
+    
+    @Param({"false", "true"})
+    public boolean warmStart;
+    
+    private final Mat[] gray = new Mat[3];
+    private Flowig_.FlowSetup setup;
+    private Mat seed;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int t = 0; t < gray.length; ++t) {
+            gray[t] = Flowig_.prepareFrame(Frames.frame(resolution, t), scaleSize);
+        }
+        setup = new Flowig_.FlowSetup(flowType, warmStart);
+        seed = warmStart ? Flowig_.computeFlow(gray[0], gray[1], setup, null) : null;
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (final Mat g : gray) {
+            g.release();
+        }
+        if (seed != null)
+            seed.release();
+        Flowig_.FLOW_POOL.release();
+    }
+    
+    @Benchmark
+    public Mat computeFlow() {
+        final Mat flow = Flowig_.computeFlow(gray[1], gray[2], setup, seed);
+        flow.release();
+        return flow;
+    }
+}
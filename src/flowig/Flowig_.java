@@ -3,8 +3,50 @@ package flowig;
 //############################################################################
 // java
 import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.awt.image.BufferedImage;
 import java.awt.Rectangle;
 
@@ -16,14 +58,17 @@ import ij.ImagePlus;
 import ij.Macro;
 import ij.process.ImageProcessor;
 import ij.gui.Overlay;
-import ij.gui.Roi;
 import ij.gui.TextRoi;
 import ij.gui.Arrow;
 import ij.gui.Line;
 import ij.gui.OvalRoi;
 import ij.gui.PolygonRoi;
+import ij.gui.Roi;
 import ij.io.DirectoryChooser;
+import ij.io.FileSaver;
 import ij.process.ColorProcessor;
+import ij.process.ByteProcessor;
+import ij.process.FloatPolygon;
 import java.awt.Composite;
 import java.awt.CompositeContext;
 import java.awt.RenderingHints;
@@ -37,9 +82,14 @@ import java.awt.image.WritableRaster;
 //############################################################################
 // opencv
 import org.bytedeco.javacpp.opencv_core.Mat;
-import org.bytedeco.javacpp.indexer.FloatIndexer;
+import org.bytedeco.javacpp.opencv_core.Size;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.FloatPointer;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.Pointer;
 import org.bytedeco.javacpp.indexer.UByteRawIndexer;
 import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacpp.opencv_imgcodecs;
 import org.bytedeco.javacpp.opencv_imgproc;
 import org.bytedeco.javacpp.opencv_optflow;
 import org.bytedeco.javacpp.opencv_video;
@@ -61,18 +111,80 @@ public class Flowig_ implements PlugIn {
     private int scaleColor = 1;
     
     static final String ARGUMENT_DIVIDER = ",";
+    // how many frames are decoded ahead of processing
+    static final int PREFETCH = 4;
     
     private FlowType flowType = FlowType.DIS;
+    // parameter profile of the flow algorithm
+    private FlowPreset preset = FlowPreset.Default;
+    // per frame time budget in ms the preset and scaleSize are tuned to on
+    // the first frames, no tuning if <= 0
+    private float budget = 0;
     private String dataDir;
+    // directory raw flow fields are written to (.flo), none if null
+    private String exportDir;
+    // directory of a memory mapped flow store to fill, none if null
+    private String storeDir;
+    // process the sequence without any window and write the results
+    private boolean headless = false;
+    // output directory and flow image format of headless runs
+    private String outDir;
+    private String format = "png";
+    // stage timings of the current run
+    private Stats stats = new Stats();
+    // sequence directories processed by one headless run, ';' separated
+    // paths, the last path component may be a glob (e.g. ~/runs/seq_*)
+    private String batch;
+    // number of sequences of a batch processed at the same time
+    private int sequences = 2;
+    // flow pool shared by the sequences of a batch, own pool if null
+    private ExecutorService flowPool;
+    // report file of the run's metrics, JSON or (for *.csv) CSV, none if null
+    private String metricsFile;
+    // publish the metrics of running sequences as MXBeans (flowig:type=Stats)
+    private boolean jmx = false;
     private boolean showX = true;
     private boolean showY = true;
     private float maxMotion = 100f;
+    // search the marker near its last position before scanning whole frames
+    private boolean trackBounds = false;
+    // compute flow only around the marker of both frames of a pair
+    private boolean roiFlow = false;
+    // pixels (at input resolution) added around the marker for roiFlow
+    private int roiMargin = 32;
+    // flow statistics inside the marker of every pair (headless: motion.csv)
+    private boolean motion = false;
+    // SparseLK: features tracked at most, and the share of them left at
+    // which new ones are detected
+    private int maxFeatures = 500;
+    private float redetect = 0.5f;
+    // pairs whose coarse frames differ by less than this mean absolute gray
+    // level get a zero flow instead of a computed one (0: only pair 0)
+    private float staticThreshold = 0;
+    // how the motion range is determined when maxMotion <= 0
+    private AutoRange autoRange = AutoRange.Frame;
+    // percentile of flow magnitudes used as sequence wide motion range
+    private float percentile = 99f;
+    // number of pairs the sequence wide range is estimated on, 0 to keep
+    // adapting it while rendering
+    private int rangeSample = 0;
+    private boolean warmUp = false;
+    // seed every pair with the flow of the previous one (DIS, FarneBack and
+    // DualTVL1), pairs are then computed one after the other
+    private boolean warmStart = false;
+    // number of frame pairs computed in parallel
+    private int threads = 1;
+    // flow fields and images at input resolution instead of the compute
+    // resolution given by scaleSize
+    private boolean fullRes = false;
+    // number of row stripes flow images are rendered in
+    private int renderThreads = Runtime.getRuntime().availableProcessors();
 
 //############################################################################
-// main (for debugging purposes only)
+// main (for debugging purposes and headless runs)
     public static void main(String[] args) {
         Flowig_ flowig = new Flowig_();
-        flowig.run(null);
+        flowig.run(args.length > 0 ? String.join(ARGUMENT_DIVIDER, args) : null);
     }
  
 //############################################################################
@@ -87,7 +199,6 @@ public class Flowig_ implements PlugIn {
         if(options == null){
             return false;
         }
-        
         String [] arguments = options.split(ARGUMENT_DIVIDER);
         
         for (final String s : arguments){
@@ -99,9 +210,43 @@ public class Flowig_ implements PlugIn {
                 case "path": 
                     dataDir = value.replace("~", System.getenv("HOME"));
                     break;
+                case "export":
+                    exportDir = value.replace("~", System.getenv("HOME"));
+                    break;
+                case "headless":
+                    headless = Boolean.parseBoolean(value);
+                    break;
+                case "out":
+                    outDir = value.replace("~", System.getenv("HOME"));
+                    break;
+                case "format":
+                    format = value.toLowerCase();
+                    break;
+                case "batch":
+                    batch = value.replace("~", System.getenv("HOME"));
+                    headless = true;
+                    break;
+                case "metrics":
+                    metricsFile = value.replace("~", System.getenv("HOME"));
+                    break;
+                case "jmx":
+                    jmx = Boolean.parseBoolean(value);
+                    break;
+                case "sequences":
+                    sequences = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "store":
+                    storeDir = value.replace("~", System.getenv("HOME"));
+                    break;
                 case "flow": 
                     flowType = FlowType.valueOf(value);
                     break;
+                case "preset":
+                    preset = FlowPreset.valueOf(value);
+                    break;
+                case "budget":
+                    budget = Float.parseFloat(value);
+                    break;
                 case "showx":
                     showX = Boolean.parseBoolean(value);
                     break;
@@ -111,6 +256,15 @@ public class Flowig_ implements PlugIn {
                 case "maxmotion":
                     maxMotion = Float.parseFloat(value);
                     break;
+                case "autorange":
+                    autoRange = AutoRange.valueOf(value);
+                    break;
+                case "percentile":
+                    percentile = Float.parseFloat(value);
+                    break;
+                case "rangesample":
+                    rangeSample = Integer.parseInt(value);
+                    break;
                 case "boundscolor":
                     final String[] channels = value.split("\\+");
                     final int r = Integer.parseInt(channels[0]);
@@ -118,9 +272,49 @@ public class Flowig_ implements PlugIn {
                     final int b = Integer.parseInt(channels[2]);
                     boundsColor = (0xff << 24) | (r << 16) | (g << 8) | (b);
                     break;
+                case "trackbounds":
+                    trackBounds = Boolean.parseBoolean(value);
+                    break;
+                case "roi":
+                    roiFlow = Boolean.parseBoolean(value);
+                    break;
+                case "roimargin":
+                    roiMargin = Integer.parseInt(value);
+                    break;
+                case "motion":
+                    motion = Boolean.parseBoolean(value);
+                    break;
+                case "features":
+                    maxFeatures = Integer.parseInt(value);
+                    break;
+                case "redetect":
+                    redetect = Float.parseFloat(value);
+                    break;
+                case "static":
+                    staticThreshold = Float.parseFloat(value);
+                    break;
                 case "scalesize":
                     scaleSize = Integer.parseInt(value);
                     break;
+                case "threads":
+                    threads = Integer.parseInt(value);
+                    if (threads <= 0)
+                        threads = Runtime.getRuntime().availableProcessors();
+                    break;
+                case "renderthreads":
+                    renderThreads = Integer.parseInt(value);
+                    if (renderThreads <= 0)
+                        renderThreads = Runtime.getRuntime().availableProcessors();
+                    break;
+                case "fullres":
+                    fullRes = Boolean.parseBoolean(value);
+                    break;
+                case "warmup":
+                    warmUp = Boolean.parseBoolean(value);
+                    break;
+                case "warmstart":
+                    warmStart = Boolean.parseBoolean(value);
+                    break;
                 case "scalecolor":
                     scaleColor = Integer.parseInt(value);
                 default:
@@ -129,14 +323,40 @@ public class Flowig_ implements PlugIn {
         }
         
         IJ.log("dataDir: " + dataDir);
-        IJ.log("exists? " + new File(dataDir).exists());
+        IJ.log("exists? " + (dataDir != null && new File(dataDir).exists()));
+        IJ.log("headless: " + headless);
+        IJ.log("batch: " + batch);
+        IJ.log("sequences: " + sequences);
+        IJ.log("metrics: " + metricsFile);
+        IJ.log("jmx: " + jmx);
+        IJ.log("outDir: " + outDir);
+        IJ.log("format: " + format);
+        IJ.log("exportDir: " + exportDir);
+        IJ.log("storeDir: " + storeDir);
         IJ.log("flowType: " + flowType);
+        IJ.log("preset: " + preset);
+        IJ.log("budget: " + budget);
         IJ.log("showX: " + showX);
         IJ.log("showY: " + showY);
         IJ.log("maxMotion: " + maxMotion);
+        IJ.log("autoRange: " + autoRange);
+        IJ.log("percentile: " + percentile);
+        IJ.log("rangeSample: " + rangeSample);
         IJ.log("boundsColor: " + boundsColor);
+        IJ.log("trackBounds: " + trackBounds);
+        IJ.log("roiFlow: " + roiFlow);
+        IJ.log("roiMargin: " + roiMargin);
+        IJ.log("motion: " + motion);
+        IJ.log("maxFeatures: " + maxFeatures);
+        IJ.log("redetect: " + redetect);
+        IJ.log("staticThreshold: " + staticThreshold);
         IJ.log("scaleSize: " + scaleSize);
         IJ.log("scaleColor: " + scaleColor);
+        IJ.log("fullRes: " + fullRes);
+        IJ.log("warmUp: " + warmUp);
+        IJ.log("warmStart: " + warmStart);
+        IJ.log("threads: " + threads);
+        IJ.log("renderThreads: " + renderThreads);
 
         return true;
     }
@@ -146,7 +366,16 @@ public class Flowig_ implements PlugIn {
     @Override
     public void run(String arg) {
                 
-        if(!checkArguments(arg)){
+        final boolean hasArguments = checkArguments(arg);
+        if (batch != null) {
+            runBatch();
+            return;
+        }
+        if (headless) {
+            System.out.print(runHeadless().summary(dataDir));
+            return;
+        }
+        if(!hasArguments){
             DirectoryChooser dirChooser
                     = new DirectoryChooser("Choose directory with images");
             dataDir = dirChooser.getDirectory();
@@ -155,62 +384,94 @@ public class Flowig_ implements PlugIn {
             }
         }
         
-        ArrayList<String> paths = new ArrayList<>();
-        ArrayList<ImagePlus> images = new ArrayList<>();
-        File dir = new File(dataDir);
-        File[] directoryListing = dir.listFiles();
-        if (directoryListing != null) {
-            for (File child : directoryListing) {
-                if (child.isDirectory()) {
-                    continue;
-                }
-                paths.add(child.getAbsolutePath());
-            }
-            if (paths.size() < 2) {
-                IJ.error("Not enough images: please select a folder with two or more images");
-                System.exit(1);
+        ArrayList<String> paths = listFrames(dataDir);
+        if (paths.size() < 2) {
+            IJ.error("Not enough images: please select a folder with two or more images");
+            return;
+        }
+        if (budget > 0)
+            autotune(paths);
+        FrameSource source = new FrameSource(paths, PREFETCH, stats);
+        
+        Overlay o = getBoundsBasedMovement(source.iterator(), false, null,
+                record -> IJ.log(record.toString()));
+        ArrayList<ImagePlus> flows = new ArrayList<>();
+        if (flowType == FlowType.SparseLK) {
+            // point tracks are drawn into the overlay, there are no flow images
+            final HashMap<Integer, FloatPolygon> tracks = new HashMap<>();
+            final int frames = trackFeatures(source, (i, id, x, y) ->
+                    tracks.computeIfAbsent(id, k -> new FloatPolygon()).addPoint(x, y));
+            for (final FloatPolygon track : tracks.values()) {
+                o.add(new PolygonRoi(track, Roi.POLYLINE));
             }
-            Collections.sort(paths, String::compareTo);
-            for (String s : paths) {
-                images.add(new ImagePlus(s));
+            stats.count(Counter.Frames, frames);
+            stats.count(Counter.Pairs, Math.max(0, frames - 1));
+        } else {
+            try (FlowExporter exporter = exportDir != null
+                        ? new FlowExporter(new File(exportDir), stats) : null;
+                 FlowStore.Writer store = storeDir != null
+                        ? new FlowStore.Writer(new File(storeDir)) : null) {
+                final int pairs = getOpticalFlowBasedMovement(source, false,
+                        flowType, maxMotion, showX, showY,
+                        (i, flow, img) -> {
+                            flows.add(img);
+                            if (store != null)
+                                store.append(flow);
+                            // the exporter releases the flow once written
+                            if (exporter != null)
+                                exporter.export(i, flow);
+                            else
+                                flow.release();
+                        }, null);
+                stats.count(Counter.Frames, paths.size());
+                // pairs compared, the first flow is frame 0 with itself
+                stats.count(Counter.Pairs, Math.max(0, pairs - 1));
+            } catch (IOException | UncheckedIOException e) {
+                IJ.error("Flow export failed: " + e.getMessage());
             }
-        } 
-        
-        Overlay o = getBoundsBasedMovement(images, false);
-        ArrayList<ImagePlus> flows = getOpticalFlowBasedMovement(
-                images, false, flowType, maxMotion, showX, showY);
-        
-        final int legendSize = 512;
-        ImagePlus legend = getFlowLegend(legendSize, legendSize, legendSize, showX, showY);
-        legend.show();
+        }
+        FLOW_POOL.release();
+        stats.stop();
+        writeMetrics(stats, metricsFile);
         
-        final int w = images.get(0).getWidth();
-        final int h = images.get(0).getHeight();
+        if (!flows.isEmpty()) {
+            final int legendSize = 512;
+            ImagePlus legend = getFlowLegend(legendSize, legendSize, legendSize, showX, showY);
+            legend.show();
+        }
         
 //        final Composite comp = BlendComposite.getInstance(BlendComposite.BlendingMode.MULTIPLY);
 //        ImageRoi imgRoi = new ImageRoi(0, 0, flows.get(0).getProcessor());
 //        imgRoi.setComposite(comp);
 //        o.add(imgRoi);
         
-        ImagePlus vizImg = new ImagePlus("flow", images.get(0).getProcessor());
-        vizImg.setImage(images.get(0));
+        ImagePlus first = new ImagePlus(paths.get(0));
+        ImagePlus vizImg = new ImagePlus("flow", first.getProcessor());
         vizImg.setOverlay(o);
         vizImg.show();
         
-        ImagePlus flowImg = new ImagePlus("flowShow", flows.get(0).getProcessor());
-        flowImg.show();
+        // flows are kept at compute resolution and only scaled up for display
+        final int w = first.getWidth();
+        final int h = first.getHeight();
+        ImagePlus flowImg = flows.isEmpty() ? null
+                : new ImagePlus("flowShow", toDisplaySize(flows.get(0), w, h));
+        if (flowImg != null)
+            flowImg.show();
         
+        // frames are streamed from disk again on every replay
         while(true){
-			for (int i = 0; i < images.size(); ++i) {
-				vizImg.setImage(images.get(i));
+            int i = 0;
+            for (final ImagePlus frame : source) {
+                vizImg.setImage(frame);
 //            o.remove(imgRoi);
 //            imgRoi = new ImageRoi(0, 0, flows.get(i).getProcessor());
 //            imgRoi.setComposite(comp);
 //            o.add(imgRoi);
-				flowImg.setImage(flows.get(i));
-				IJ.wait(500);
-			}
-		}
+                if (flowImg != null)
+                    flowImg.setProcessor(toDisplaySize(flows.get(i++), w, h));
+                IJ.wait(500);
+            }
+        }
 
         
         //flowImg.close();
@@ -218,6 +479,654 @@ public class Flowig_ implements PlugIn {
         //legend.close();
     }
     
+    
+//############################################################################
+// headless batch processing
+    // nearest neighbour, colors of a flow image must not be blended
+    static private ImageProcessor toDisplaySize(final ImagePlus img, final int w, final int h) {
+        final ImageProcessor ip = img.getProcessor();
+        if (ip.getWidth() == w && ip.getHeight() == h)
+            return ip;
+        ip.setInterpolationMethod(ImageProcessor.NONE);
+        return ip.resize(w, h);
+    }
+    
+    // Processes the sequence in dataDir without opening any window: marker
+    // bounds go to outDir/bounds.csv, flow visualizations to outDir as
+    // flow_NNNNNN.<format> (png, tif, jpg) or the raw flow as .flo files
+    // for format=flo, and the raw flow to exportDir as well (if set). Returns the metrics of the run, empty if nothing could
+    // be processed; they are also added to parent (if given).
+    public Stats runHeadless() {
+        return runHeadless(null);
+    }
+    
+    public Stats runHeadless(final Stats parent) {
+        stats = new Stats(parent);
+        if (dataDir == null || outDir == null) {
+            IJ.log("headless runs need path= and out=");
+            return stats;
+        }
+        ArrayList<String> paths = listFrames(dataDir);
+        if (paths.size() < 2) {
+            IJ.log("Not enough images in " + dataDir);
+            return stats;
+        }
+        if (budget > 0)
+            autotune(paths);
+        final File out = new File(outDir);
+        final ObjectName bean = jmx ? register(stats, dataDir) : null;
+        FrameSource source = new FrameSource(paths, PREFETCH, stats);
+        
+        try (PrintWriter csv = new PrintWriter(new FileWriter(new File(mkdirs(out), "bounds.csv")));
+             PrintWriter motions = motion
+                    ? new PrintWriter(new FileWriter(new File(out, "motion.csv"))) : null;
+             PrintWriter tracks = flowType == FlowType.SparseLK
+                    ? new PrintWriter(new FileWriter(new File(out, "tracks.csv"))) : null;
+             FlowExporter exporter = new FlowExporter(out, stats);
+             FlowExporter export = exportDir != null
+                    ? new FlowExporter(new File(exportDir), stats) : null;
+             FlowStore.Writer store = storeDir != null
+                    ? new FlowStore.Writer(new File(storeDir)) : null) {
+            csv.println("frame,x,y,width,height");
+            if (motions != null)
+                motions.println(MotionRecord.CSV_HEADER);
+            if (tracks != null)
+                tracks.println("frame,id,x,y");
+            // bounds are found in the flow (or tracking) pass, every frame
+            // is decoded once
+            final BoundsSink bounds = (i, bound) ->
+                    csv.println(i + "," + bound.x + "," + bound.y + ","
+                            + bound.width + "," + bound.height);
+            
+            final boolean raw = "flo".equals(format);
+            // point tracks instead of flow fields for SparseLK; pairs
+            // compared, the first flow is frame 0 with itself
+            final int results = tracks != null
+                    ? trackFeatures(source, (i, id, x, y) -> tracks.println(
+                            String.format(Locale.ROOT, "%d,%d,%.2f,%.2f", i, id, x, y)), bounds)
+                    : getOpticalFlowBasedMovement(source, false,
+                        flowType, maxMotion, showX, showY,
+                        (i, flow, img) -> {
+                            if (store != null) {
+                                final long t = System.nanoTime();
+                                store.append(flow);
+                                Stats.lap(stats, Stage.Write, t);
+                                stats.count(Counter.BytesWritten, flow.total() * flow.elemSize());
+                            }
+                            // the exporters release the flow once written,
+                            // each needs its own for format=flo and export=
+                            if (raw)
+                                exporter.export(i, export != null ? flow.clone() : flow);
+                            else
+                                exporter.exportImage(i, img, format);
+                            if (export != null)
+                                export.export(i, flow);
+                            else if (!raw)
+                                flow.release();
+                        },
+                        motions == null ? null : record -> motions.println(record.toCsv()),
+                        bounds);
+            stats.count(Counter.Frames, paths.size());
+            stats.count(Counter.Pairs, Math.max(0, results - 1));
+        } catch (IOException | UncheckedIOException e) {
+            IJ.log("Writing results failed: " + e.getMessage());
+        } finally {
+            // a shared pool still serves other sequences
+            if (flowPool == null)
+                FLOW_POOL.release();
+            unregister(bean);
+        }
+        stats.stop();
+        writeMetrics(stats, metricsFile);
+        return stats;
+    }
+    
+    // Runs every sequence directory matched by batch in this JVM, up to
+    // sequences at a time. Flow pairs of all sequences share one pool of
+    // threads workers (so native flow instances stay warm across sequences),
+    // decoding, bounds and writing run on each sequence's own threads.
+    // Results of sequence dir go to out/<name of dir>.
+    public void runBatch() {
+        final List<File> dirs = listSequences(batch);
+        if (dirs.isEmpty() || outDir == null) {
+            IJ.log("batch runs need out= and at least one sequence in " + batch);
+            return;
+        }
+        final ExecutorService shared = newFlowExecutor(threads);
+        final ExecutorService drivers = newDaemonPool(sequences, "flowig-sequence");
+        final Stats total = new Stats(null);
+        final ObjectName bean = jmx ? register(total, "total") : null;
+        try {
+            final List<Future<Stats>> runs = new ArrayList<>();
+            for (final File dir : dirs) {
+                final Flowig_ job = copySettings();
+                job.batch = null;
+                job.dataDir = dir.getPath();
+                job.outDir = new File(outDir, dir.getName()).getPath();
+                job.flowPool = shared;
+                if (metricsFile != null)
+                    job.metricsFile = new File(job.outDir,
+                            new File(metricsFile).getName()).getPath();
+                // a store or export directory is written by one sequence only
+                if (exportDir != null)
+                    job.exportDir = new File(exportDir, dir.getName()).getPath();
+                if (storeDir != null)
+                    job.storeDir = new File(storeDir, dir.getName()).getPath();
+                runs.add(drivers.submit(() -> job.runHeadless(total)));
+            }
+            // a failing sequence is reported, the others go on
+            int failed = 0;
+            for (int i = 0; i < runs.size(); ++i) {
+                try {
+                    final Stats run = runs.get(i).get();
+                    System.out.print(run.summary(dirs.get(i).getPath()));
+                } catch (ExecutionException e) {
+                    ++failed;
+                    IJ.log("Sequence " + dirs.get(i).getPath() + " failed: " + e.getCause());
+                }
+            }
+            if (failed > 0)
+                IJ.log(failed + " of " + dirs.size() + " sequences failed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // interrupted sequences wait for their pairs in the shared pool,
+            // so it is shut down after them
+            drivers.shutdownNow();
+            shutdownAndWait(drivers);
+            shutdownAndWait(shared);
+            FLOW_POOL.release();
+            unregister(bean);
+        }
+        total.stop();
+        System.out.print(total.summary("total (" + dirs.size() + " sequences)"));
+        writeMetrics(total, metricsFile);
+    }
+    
+    // the parsed arguments, for a sequence of a batch (without its stats)
+    private Flowig_ copySettings() {
+        final Flowig_ job = new Flowig_();
+        job.boundsColor = boundsColor;
+        job.scaleSize = scaleSize;
+        job.scaleColor = scaleColor;
+        job.flowType = flowType;
+        job.preset = preset;
+        job.budget = budget;
+        job.dataDir = dataDir;
+        job.exportDir = exportDir;
+        job.storeDir = storeDir;
+        job.headless = headless;
+        job.outDir = outDir;
+        job.format = format;
+        job.batch = batch;
+        job.sequences = sequences;
+        job.flowPool = flowPool;
+        job.metricsFile = metricsFile;
+        job.jmx = jmx;
+        job.showX = showX;
+        job.showY = showY;
+        job.maxMotion = maxMotion;
+        job.trackBounds = trackBounds;
+        job.roiFlow = roiFlow;
+        job.roiMargin = roiMargin;
+        job.motion = motion;
+        job.maxFeatures = maxFeatures;
+        job.redetect = redetect;
+        job.staticThreshold = staticThreshold;
+        job.autoRange = autoRange;
+        job.percentile = percentile;
+        job.rangeSample = rangeSample;
+        job.warmUp = warmUp;
+        job.warmStart = warmStart;
+        job.threads = threads;
+        job.fullRes = fullRes;
+        job.renderThreads = renderThreads;
+        return job;
+    }
+    
+    // Picks the most accurate preset and scaleSize whose per frame cost
+    // (preparing a frame and computing a pair, spread over the flow threads)
+    // fits into budget ms, measured on the first frames. Candidates go from
+    // Medium to UltraFast at the configured scaleSize, then the same at each
+    // further downscaling while frames stay at least MIN_COMPUTE_SIZE wide
+    // (DIS fails on smaller ones); the cheapest is kept if none fits.
+    public void autotune(final List<String> paths) {
+        if (flowType == FlowType.SparseLK
+                || !FlowSetup.supportsPresets(flowType) && scaleSize >= MAX_SCALE_SIZE)
+            return;
+        final int n = Math.min(paths.size(), CALIBRATION_FRAMES);
+        final ImagePlus[] frames = new ImagePlus[n];
+        for (int i = 0; i < n; ++i) {
+            frames[i] = new ImagePlus(paths.get(i));
+        }
+        final FlowPreset[] presets = FlowSetup.supportsPresets(flowType)
+                ? new FlowPreset[]{FlowPreset.Medium, FlowPreset.Fast, FlowPreset.UltraFast}
+                : new FlowPreset[]{preset};
+        final int workers = Math.max(1, threads);
+        
+        FlowPreset bestPreset = preset;
+        int bestScale = scaleSize;
+        final int size = Math.max(frames[0].getWidth(), frames[0].getHeight());
+        tuning:
+        for (int scale = scaleSize; scale <= MAX_SCALE_SIZE
+                && (scale == scaleSize || size >> scale >= MIN_COMPUTE_SIZE); ++scale) {
+            for (final FlowPreset candidate : presets) {
+                final double ms = calibrate(frames, new FlowSetup(flowType, candidate, false),
+                        scale) / workers;
+                IJ.log(String.format("autotune: %s, scaleSize %d: %.1f ms per frame",
+                        candidate, scale, ms));
+                bestPreset = candidate;
+                bestScale = scale;
+                if (ms <= budget)
+                    break tuning;
+            }
+        }
+        // a shared pool is still in use by other sequences
+        if (flowPool == null)
+            FLOW_POOL.release();
+        preset = bestPreset;
+        scaleSize = bestScale;
+        IJ.log("autotune: using preset " + preset + ", scaleSize " + scaleSize);
+    }
+    
+    static final int CALIBRATION_FRAMES = 4;
+    static final int MAX_SCALE_SIZE = 3;
+    static final int MIN_COMPUTE_SIZE = 128;
+    
+    // mean time in ms to prepare a frame and compute the pair it closes,
+    // the first pair only warms the flow instance up
+    static private double calibrate(final ImagePlus[] frames, final FlowSetup setup,
+            final int scaleSize) {
+        Mat prev = prepareFrame(frames[0], scaleSize);
+        computeFlow(prev, prev, setup, null).release();
+        long nanos = 0;
+        for (int i = 1; i < frames.length; ++i) {
+            final long t = System.nanoTime();
+            final Mat cur = prepareFrame(frames[i], scaleSize);
+            computeFlow(prev, cur, setup, null).release();
+            nanos += System.nanoTime() - t;
+            prev.release();
+            prev = cur;
+        }
+        prev.release();
+        return nanos / 1e6 / Math.max(1, frames.length - 1);
+    }
+    
+    // ';' separated directories, a glob in the last path component matches
+    // all sub directories of its parent
+    static public List<File> listSequences(final String spec) {
+        final List<File> dirs = new ArrayList<>();
+        for (final String part : spec.split(";")) {
+            final String entry = part.trim();
+            if (entry.isEmpty())
+                continue;
+            final File file = new File(entry);
+            if (!entry.matches(".*[*?\\[{].*")) {
+                dirs.add(file);
+                continue;
+            }
+            final File parent = file.getAbsoluteFile().getParentFile();
+            final PathMatcher matcher = FileSystems.getDefault()
+                    .getPathMatcher("glob:" + file.getName());
+            final File[] children = parent.listFiles();
+            if (children == null)
+                continue;
+            final List<File> matched = new ArrayList<>();
+            for (final File child : children) {
+                final Path name = child.toPath().getFileName();
+                if (child.isDirectory() && matcher.matches(name))
+                    matched.add(child);
+            }
+            Collections.sort(matched);
+            dirs.addAll(matched);
+        }
+        return dirs;
+    }
+    
+    static private ExecutorService newDaemonPool(final int size, final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(size, r -> {
+            Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    static private File mkdirs(final File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        return dir;
+    }
+    
+//############################################################################
+// metrics
+    static public enum Stage {
+        Decode,
+        Bounds,
+        ToMat,
+        PyrDown,
+        // cvtColor and equalizeHist
+        Gray,
+        Flow,
+        Colorize,
+        // flow statistics inside the marker (motion=true)
+        Motion,
+        // feature detection and sparse tracking (SparseLK)
+        Track,
+        // difference of the coarse frames of a pair (static=)
+        Change,
+        // flow field resized to input resolution (fullres=true)
+        Upsample,
+        ToImagePlus,
+        Write
+    }
+    
+    static public enum Counter {
+        Frames,
+        Pairs,
+        // pairs given a zero flow as static
+        Skipped,
+        BytesRead,
+        BytesWritten,
+        // Mats allocated by the pipeline stages
+        NativeAllocations
+    }
+    
+    // what a Stats instance publishes through JMX, times in milliseconds
+    static public interface StatsMXBean {
+        double getFramesPerSecond();
+        Map<String, Long> getCounters();
+        Map<String, Double> getTotalMillis();
+        Map<String, Double> getP50Millis();
+        Map<String, Double> getP99Millis();
+        long getNativeBytes();
+    }
+    
+    // Time spent per stage (summed over all threads, with a latency histogram
+    // per stage) and counters of a run. Everything recorded is also recorded
+    // in the parent, so a batch has live totals.
+    static public class Stats implements StatsMXBean {
+        private final Stats parent;
+        private final LongAdder[] nanos = new LongAdder[Stage.values().length];
+        private final LatencyHistogram[] latency = new LatencyHistogram[Stage.values().length];
+        private final LongAdder[] counters = new LongAdder[Counter.values().length];
+        private final long start = System.nanoTime();
+        private volatile long stop = 0;
+        
+        public Stats() {
+            this(null);
+        }
+        
+        public Stats(final Stats parent) {
+            this.parent = parent;
+            for (int i = 0; i < nanos.length; ++i) {
+                nanos[i] = new LongAdder();
+                latency[i] = new LatencyHistogram();
+            }
+            for (int i = 0; i < counters.length; ++i) {
+                counters[i] = new LongAdder();
+            }
+        }
+        
+        // records the time since start (from System.nanoTime) for the stage
+        // and returns the current time, the start of the next stage; stats
+        // may be null
+        static public long lap(final Stats stats, final Stage stage, final long start) {
+            final long now = System.nanoTime();
+            if (stats != null)
+                stats.record(stage, now - start);
+            return now;
+        }
+        
+        static public void count(final Stats stats, final Counter counter, final long n) {
+            if (stats != null)
+                stats.count(counter, n);
+        }
+        
+        public void record(final Stage stage, final long nanos) {
+            this.nanos[stage.ordinal()].add(nanos);
+            latency[stage.ordinal()].add(nanos);
+            if (parent != null)
+                parent.record(stage, nanos);
+        }
+        
+        public void count(final Counter counter, final long n) {
+            counters[counter.ordinal()].add(n);
+            if (parent != null)
+                parent.count(counter, n);
+        }
+        
+        public long nanos(final Stage stage) {
+            return nanos[stage.ordinal()].sum();
+        }
+        
+        public long calls(final Stage stage) {
+            return latency[stage.ordinal()].count();
+        }
+        
+        public long count(final Counter counter) {
+            return counters[counter.ordinal()].sum();
+        }
+        
+        public LatencyHistogram latency(final Stage stage) {
+            return latency[stage.ordinal()];
+        }
+        
+        // ends the wall clock time of the run
+        public void stop() {
+            stop = System.nanoTime();
+        }
+        
+        public long wallNanos() {
+            return (stop != 0 ? stop : System.nanoTime()) - start;
+        }
+        
+        @Override
+        public double getFramesPerSecond() {
+            return count(Counter.Frames) / (Math.max(1, wallNanos()) / 1e9);
+        }
+        
+        @Override
+        public Map<String, Long> getCounters() {
+            final Map<String, Long> map = new LinkedHashMap<>();
+            for (final Counter counter : Counter.values()) {
+                map.put(counter.name(), count(counter));
+            }
+            return map;
+        }
+        
+        @Override
+        public Map<String, Double> getTotalMillis() {
+            final Map<String, Double> map = new LinkedHashMap<>();
+            for (final Stage stage : Stage.values()) {
+                map.put(stage.name(), nanos(stage) / 1e6);
+            }
+            return map;
+        }
+        
+        @Override
+        public Map<String, Double> getP50Millis() {
+            return percentileMillis(50);
+        }
+        
+        @Override
+        public Map<String, Double> getP99Millis() {
+            return percentileMillis(99);
+        }
+        
+        private Map<String, Double> percentileMillis(final double p) {
+            final Map<String, Double> map = new LinkedHashMap<>();
+            for (final Stage stage : Stage.values()) {
+                map.put(stage.name(), latency(stage).percentile(p) / 1e6);
+            }
+            return map;
+        }
+        
+        // native memory currently held through JavaCPP
+        @Override
+        public long getNativeBytes() {
+            return Pointer.totalBytes();
+        }
+        
+        public String summary(final String title) {
+            return title + ": " + summary();
+        }
+        
+        public String summary() {
+            final long frames = count(Counter.Frames);
+            final double seconds = Math.max(1, wallNanos()) / 1e9;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("frames: %d, pairs: %d, skipped: %d, time: %.2f s, %.2f frames/s%n",
+                    frames, count(Counter.Pairs), count(Counter.Skipped), seconds, frames / seconds));
+            sb.append(String.format("  read: %.1f MB, written: %.1f MB, native allocations: %d%n",
+                    count(Counter.BytesRead) / 1e6, count(Counter.BytesWritten) / 1e6,
+                    count(Counter.NativeAllocations)));
+            for (final Stage stage : Stage.values()) {
+                final long n = calls(stage);
+                final double ms = nanos(stage) / 1e6;
+                sb.append(String.format("  %-11s %10.1f ms %8d calls %8.2f ms/call, p50 %8.2f ms, p99 %8.2f ms%n",
+                        stage, ms, n, n > 0 ? ms / n : 0,
+                        latency(stage).percentile(50) / 1e6,
+                        latency(stage).percentile(99) / 1e6));
+            }
+            return sb.toString();
+        }
+        
+        public String toJson() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\n");
+            sb.append(String.format(Locale.ROOT,
+                    "  \"wallSeconds\": %.6f,%n  \"framesPerSecond\": %.3f,%n  \"nativeBytes\": %d,%n",
+                    wallNanos() / 1e9, getFramesPerSecond(), getNativeBytes()));
+            sb.append("  \"counters\": {");
+            String sep = "\n";
+            for (final Counter counter : Counter.values()) {
+                sb.append(sep).append("    \"").append(counter).append("\": ").append(count(counter));
+                sep = ",\n";
+            }
+            sb.append("\n  },\n  \"stages\": {");
+            sep = "\n";
+            for (final Stage stage : Stage.values()) {
+                final LatencyHistogram h = latency(stage);
+                sb.append(sep).append(String.format(Locale.ROOT,
+                        "    \"%s\": {\"calls\": %d, \"totalMs\": %.3f, \"p50Ms\": %.3f, \"p99Ms\": %.3f, \"maxMs\": %.3f}",
+                        stage, h.count(), nanos(stage) / 1e6,
+                        h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.percentile(100) / 1e6));
+                sep = ",\n";
+            }
+            sb.append("\n  }\n}\n");
+            return sb.toString();
+        }
+        
+        // one metric,value row per counter and per stage statistic
+        public String toCsv() {
+            StringBuilder sb = new StringBuilder("metric,value\n");
+            sb.append(String.format(Locale.ROOT, "wall_seconds,%.6f%n", wallNanos() / 1e9));
+            sb.append(String.format(Locale.ROOT, "frames_per_second,%.3f%n", getFramesPerSecond()));
+            sb.append("native_bytes,").append(getNativeBytes()).append('\n');
+            for (final Counter counter : Counter.values()) {
+                sb.append(counter).append(',').append(count(counter)).append('\n');
+            }
+            for (final Stage stage : Stage.values()) {
+                final LatencyHistogram h = latency(stage);
+                sb.append(stage).append(".calls,").append(h.count()).append('\n');
+                sb.append(String.format(Locale.ROOT,
+                        "%1$s.total_ms,%2$.3f%n%1$s.p50_ms,%3$.3f%n%1$s.p99_ms,%4$.3f%n%1$s.max_ms,%5$.3f%n",
+                        stage, nanos(stage) / 1e6, h.percentile(50) / 1e6,
+                        h.percentile(99) / 1e6, h.percentile(100) / 1e6));
+            }
+            return sb.toString();
+        }
+    }
+    
+// ######## lock free log-linear histogram of durations in nanoseconds
+    // 8 sub-buckets per power of two, so percentiles are within 12.5%
+    static public class LatencyHistogram {
+        static final int SUB_BITS = 3;
+        static final int SUB = 1 << SUB_BITS;
+        
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+        
+        static int bucket(final long nanos) {
+            if (nanos < SUB)
+                return (int) Math.max(0, nanos);
+            final int e = 63 - Long.numberOfLeadingZeros(nanos);
+            final int sub = (int) (nanos >>> (e - SUB_BITS)) & (SUB - 1);
+            return (e - SUB_BITS + 1) * SUB + sub;
+        }
+        
+        // largest duration falling into bucket i
+        static long upper(final int i) {
+            if (i < SUB)
+                return i;
+            final int e = i / SUB + SUB_BITS - 1;
+            final long lower = (long) (SUB + i % SUB) << (e - SUB_BITS);
+            return lower + (1L << (e - SUB_BITS)) - 1;
+        }
+        
+        public void add(final long nanos) {
+            counts.incrementAndGet(bucket(nanos));
+        }
+        
+        public long count() {
+            long n = 0;
+            for (int i = 0; i < counts.length(); ++i) {
+                n += counts.get(i);
+            }
+            return n;
+        }
+        
+        // upper bound of the p-th percentile (0 - 100), 0 if empty
+        public long percentile(final double p) {
+            final long n = count();
+            if (n == 0)
+                return 0;
+            final long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); ++i) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return upper(i);
+            }
+            return upper(counts.length() - 1);
+        }
+    }
+    
+// ######## metrics report and JMX
+    static public void writeMetrics(final Stats stats, final String file) {
+        if (file == null)
+            return;
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.print(file.toLowerCase().endsWith(".csv") ? stats.toCsv() : stats.toJson());
+        } catch (IOException e) {
+            IJ.log("Writing metrics failed: " + e.getMessage());
+        }
+    }
+    
+    static private ObjectName register(final Stats stats, final String name) {
+        try {
+            final ObjectName bean = new ObjectName("flowig:type=Stats,name=" + ObjectName.quote(name));
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(bean))
+                server.unregisterMBean(bean);
+            server.registerMBean(stats, bean);
+            return bean;
+        } catch (JMException e) {
+            IJ.log("JMX registration failed: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    static private void unregister(final ObjectName bean) {
+        if (bean == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(bean);
+        } catch (JMException e) {
+            // already gone
+        }
+    }
+    
    
 //############################################################################    
 //############################################################################    
@@ -228,99 +1137,269 @@ public class Flowig_ implements PlugIn {
     public Overlay getBoundsBasedMovement(ArrayList<ImagePlus> images, boolean viz) {
         if (images.size() < 2)
             return new Overlay();
-        
-        ArrayList<Vector> centers = new ArrayList<>();
-        ArrayList<Rectangle> bounds = new ArrayList<>();
-        
-        final int w = images.get(0).getWidth();
-        final int h = images.get(0).getHeight();
-        
-        ImageProcessor vizIp = new ColorProcessor(w, h);
-        ImagePlus vizImg = new ImagePlus("movement", vizIp);
-        
+        return getBoundsBasedMovement(images.iterator(), viz);
+    }
+    
+    // only the previous center is kept, so frames can be streamed
+    public Overlay getBoundsBasedMovement(Iterator<ImagePlus> images, boolean viz) {
+        return getBoundsBasedMovement(images, viz, null);
+    }
+    
+    // the bounds found in each frame are also handed to sink (if given)
+    public Overlay getBoundsBasedMovement(Iterator<ImagePlus> images, boolean viz,
+            BoundsSink sink) {
+        return getBoundsBasedMovement(images, viz, sink, null);
+    }
+    
+    // the movement of the marker to each frame it is found in goes to
+    // motions (if given), without flow statistics
+    public Overlay getBoundsBasedMovement(Iterator<ImagePlus> images, boolean viz,
+            BoundsSink sink, MotionSink motions) {
         Overlay o = new Overlay();
+        if (!images.hasNext())
+            return o;
         
-        if (viz) {
-            vizImg.setOverlay(o);
-            vizImg.show();
-        }
+        ImagePlus vizImg = null;
+        Vector centerA = null;
+        BoundsTracker tracker = trackBounds ? new BoundsTracker(boundsColor) : null;
         
         int i = 0;
-        for (ImagePlus img : images) {
-            Rectangle bound = getBounds(img, boundsColor);
-
-            if(bound.width == 0 || bound.height == 0) {
-                continue;
-            }
+        int frame = 0;
+        try {
+            while (images.hasNext()) {
+                final ImagePlus img = images.next();
+                final int index = frame++;
+            
+                if (viz && vizImg == null) {
+                    ImageProcessor vizIp = new ColorProcessor(img.getWidth(), img.getHeight());
+                    vizImg = new ImagePlus("movement", vizIp);
+                    vizImg.setOverlay(o);
+                    vizImg.show();
+                }
             
-            bounds.add(bound);
+                final long t = System.nanoTime();
+                Rectangle bound = tracker != null
+                        ? tracker.next(img.getProcessor())
+                        : getBounds(img, boundsColor);
+                Stats.lap(stats, Stage.Bounds, t);
+                if (sink != null)
+                    sink.accept(index, bound);
+
+                if(bound.width == 0 || bound.height == 0) {
+                    continue;
+                }
                            
-            float centerX = bound.x + bound.width / 2f;
-            float centerY = bound.y + bound.height / 2f;
+                float centerX = bound.x + bound.width / 2f;
+                float centerY = bound.y + bound.height / 2f;
            
-            centers.add(new Vector(centerX, centerY));
+                Vector centerB = new Vector(centerX, centerY);
             
-            if (i > 0) {
-                Vector centerA = centers.get(i-1);
-                Vector centerB = centers.get(i);
-                Arrow roi = new Arrow(centerA.x, centerA.y,
-                                      centerB.x, centerB.y);
-                TextRoi idRoi = new TextRoi(centerB.x, centerB.y, ""+i);
-                o.add(idRoi);
-                System.out.println("" + i + ": ");
-                o.add(roi);
-                Vector ab = centerB.minus(centerA);
-                double length = ab.length();
-                System.out.println("Velocity: " + length);
-                Vector direction = ab.unit();
-                System.out.println("Direction: " + direction);
-                System.out.println("--------");
-            }  
-            i++;
+                if (i > 0) {
+                    Arrow roi = new Arrow(centerA.x, centerA.y,
+                                          centerB.x, centerB.y);
+                    TextRoi idRoi = new TextRoi(centerB.x, centerB.y, ""+i);
+                    o.add(idRoi);
+                    o.add(roi);
+                    if (motions != null)
+                        motions.accept(new MotionRecord(index, bound, centerB.minus(centerA), null));
+                }  
+                centerA = centerB;
+                i++;
             
-            if (viz)
-                vizImg.setImage(img);
+                if (viz)
+                    vizImg.setImage(img);
+            }
+        } finally {
+            closeQuietly(images);
         }
         
-        System.out.println("==========================");
-        
-        if (viz)
+        if (vizImg != null)
             vizImg.close();
         
         return o;
     }
        
+// ######## receives the bounds of each frame in order
+    @FunctionalInterface
+    public interface BoundsSink {
+        void accept(int frame, Rectangle bounds);
+    }
+    
+// ######## receives the motion record of each frame or pair in order
+    @FunctionalInterface
+    public interface MotionSink {
+        void accept(MotionRecord record);
+    }
+    
 // ######## bbox detection    
+    // Same rectangle as the bounds of a polygon through all matching pixels
+    // (width and height are max - min, empty if nothing matches), found
+    // without collecting the pixels: the first and last matching rows fix
+    // the vertical extent, rows in between only need to be searched outside
+    // of the horizontal extent found so far.
     static public Rectangle getBounds(ImagePlus image, long boundsColor) {
-        ImageProcessor ip = image.getProcessor();
-        final int w = image.getWidth();
-        final int h = image.getHeight();
-        
-        int[][] pix = ip.getIntArray();
-        ArrayList<Float> pListX = new ArrayList<>();
-        ArrayList<Float> pListY = new ArrayList<>();
-
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                if (pix[x][y] == boundsColor) {
-                    pListX.add((float)x);
-                    pListY.add((float)y);
-                }
+        return getBounds(image.getProcessor(), boundsColor);
+    }
+    
+    static public Rectangle getBounds(ImageProcessor ip, long boundsColor) {
+        final Rectangle bounds = findBounds(ip, boundsColor,
+                new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+        return bounds != null ? bounds : new Rectangle();
+    }
+    
+    // bounds of the matching pixels inside window (x, y, width, height are
+    // the searched pixel range here), null if there are none
+    static public Rectangle findBounds(ImageProcessor ip, long boundsColor, Rectangle window) {
+        final int w = ip.getWidth();
+        final Rectangle r = window.intersection(new Rectangle(0, 0, w, ip.getHeight()));
+        // pixel values are ints, other colors can never match
+        if (boundsColor != (int) boundsColor || r.width <= 0 || r.height <= 0)
+            return null;
+        final int color = (int) boundsColor;
+        final int x0 = r.x;
+        final int x1 = r.x + r.width;
+        final int y0 = r.y;
+        final int y1 = r.y + r.height;
+        
+        // RGB pixels are searched in place, others one row at a time
+        final int[] pixels = ip instanceof ColorProcessor ? (int[]) ip.getPixels() : null;
+        final int[] buffer = pixels == null ? new int[w] : null;
+        
+        int minX = -1, maxX = -1, minY = -1, maxY = -1;
+        for (int y = y0; y < y1; ++y) {
+            final int[] row = row(ip, pixels, buffer, y);
+            final int off = pixels != null ? y * w : 0;
+            final int first = firstMatch(row, off, x0, x1, color);
+            if (first >= 0) {
+                minY = y;
+                minX = first;
+                maxX = lastMatch(row, off, first, x1, color);
+                break;
+            }
+        }
+        if (minY < 0)
+            return null;
+        
+        for (int y = y1 - 1; y > minY; --y) {
+            final int[] row = row(ip, pixels, buffer, y);
+            final int off = pixels != null ? y * w : 0;
+            final int first = firstMatch(row, off, x0, x1, color);
+            if (first >= 0) {
+                maxY = y;
+                minX = Math.min(minX, first);
+                maxX = Math.max(maxX, lastMatch(row, off, first, x1, color));
+                break;
             }
         }
-        float[] pX = new float[pListY.size()];
-        float[] pY = new float[pListX.size()];
-        for (int i = 0; i < pListX.size(); ++i) {
-            pX[i] = (float)pListX.get(i);
-            pY[i] = (float)pListY.get(i);
+        if (maxY < 0)
+            maxY = minY;
+        
+        for (int y = minY + 1; y < maxY; ++y) {
+            final int[] row = row(ip, pixels, buffer, y);
+            final int off = pixels != null ? y * w : 0;
+            final int left = firstMatch(row, off, x0, minX, color);
+            if (left >= 0)
+                minX = left;
+            final int right = lastMatch(row, off, maxX + 1, x1, color);
+            if (right >= 0)
+                maxX = right;
         }
-
-        PolygonRoi pointsRoi =
-            new PolygonRoi(pX, pY,
-                           Roi.POLYGON);
         
-        Rectangle bounds = pointsRoi.getBounds();
-        return bounds;
+        return new Rectangle(minX, minY, maxX - minX, maxY - minY);
+    }
+    
+    static private int[] row(ImageProcessor ip, int[] pixels, int[] buffer, int y) {
+        if (pixels != null)
+            return pixels;
+        ip.getRow(0, y, buffer, buffer.length);
+        return buffer;
+    }
+    
+    // first x in [from, to) of the row starting at off with the given color, or -1
+    static private int firstMatch(int[] row, int off, int from, int to, int color) {
+        for (int x = from; x < to; ++x) {
+            if (row[off + x] == color)
+                return x;
+        }
+        return -1;
+    }
+    
+    // last x in [from, to) of the row starting at off with the given color, or -1
+    static private int lastMatch(int[] row, int off, int from, int to, int color) {
+        for (int x = to - 1; x >= from; --x) {
+            if (row[off + x] == color)
+                return x;
+        }
+        return -1;
+    }
+    
+// ######## bbox tracking between consecutive frames
+    // Searches a window around the previous bounds, shifted by the last
+    // frame to frame movement and grown by that movement plus a margin.
+    // Falls back to a full frame scan if the marker is not found there or
+    // touches the window border (it may continue outside of it). Markers
+    // that appear elsewhere while the tracked one is visible are not seen.
+    static public class BoundsTracker {
+        static final int MARGIN = 16;
+        
+        private final long color;
+        private Rectangle last = null;
+        private int dx = 0;
+        private int dy = 0;
+        private int windowScans = 0;
+        private int fullScans = 0;
+        
+        public BoundsTracker(final long color) {
+            this.color = color;
+        }
+        
+        // same result as getBounds if the marker did not jump
+        public Rectangle next(ImageProcessor ip) {
+            Rectangle bounds = null;
+            if (last != null) {
+                final int mx = Math.abs(dx) + MARGIN;
+                final int my = Math.abs(dy) + MARGIN;
+                final Rectangle window = new Rectangle(
+                        last.x + dx - mx, last.y + dy - my,
+                        last.width + 1 + 2 * mx, last.height + 1 + 2 * my)
+                        .intersection(new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+                bounds = findBounds(ip, color, window);
+                ++windowScans;
+                if (bounds != null && touchesBorder(bounds, window, ip))
+                    bounds = null;
+            }
+            if (bounds == null) {
+                bounds = findBounds(ip, color, new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+                ++fullScans;
+            }
+            
+            if (bounds != null && last != null) {
+                dx = bounds.x - last.x;
+                dy = bounds.y - last.y;
+            } else {
+                dx = 0;
+                dy = 0;
+            }
+            last = bounds;
+            return bounds != null ? bounds : new Rectangle();
+        }
+        
+        static private boolean touchesBorder(Rectangle b, Rectangle window, ImageProcessor ip) {
+            return (b.x == window.x && window.x > 0)
+                || (b.y == window.y && window.y > 0)
+                || (b.x + b.width == window.x + window.width - 1
+                    && window.x + window.width < ip.getWidth())
+                || (b.y + b.height == window.y + window.height - 1
+                    && window.y + window.height < ip.getHeight());
+        }
+        
+        public int getWindowScans() {
+            return windowScans;
+        }
+        
+        public int getFullScans() {
+            return fullScans;
+        }
     }
     
 //############################################################################    
@@ -338,41 +1417,617 @@ public class Flowig_ implements PlugIn {
         
         if (images.size() < 2)
             return imagesOut;
-
-        ImagePlus img0 = images.get(0);
-        final int w = img0.getWidth();
-        final int h = img0.getHeight();
-        
-        ImageProcessor vizIp = new ColorProcessor(w, h);
-        ImagePlus vizImg = new ImagePlus("flow", vizIp);
         
-        if (viz)
-            vizImg.show();
+        getOpticalFlowBasedMovement(images.iterator(), viz, flowType,
+                maxmotion, doX, doY, (i, flow, img) -> {
+                    imagesOut.add(img);
+                    flow.release();
+                });
         
-        for (final ImagePlus img1 : images) {
-            Mat mat0 = toMat(img0);
-            Mat mat1 = toMat(img1);
-            for (int i = 0; i < scaleSize; ++i) {
-                opencv_imgproc.pyrDown(mat0, mat0);
-                opencv_imgproc.pyrDown(mat1, mat1);
-            }
-            Mat flow = makeFlow(mat0, mat1, flowType);
-            Mat flowImg = drawOpticalFlow(flow, maxmotion, doX, doY);
-            for (int i = 0; i < scaleSize; ++i) {
-                opencv_imgproc.pyrUp(flowImg, flowImg);
-            }
-            ImagePlus img = toImagePlus(flowImg);
-            imagesOut.add(img);
-            img0.setImage(img1);
-            
-            if (viz)
-                vizImg.setImage(img);
+        return imagesOut;
+    }
+    
+    // streaming variant: only the current pair of frames is held, results
+    // are handed to the sink as soon as they are computed
+    public int getOpticalFlowBasedMovement(
+            Iterator<ImagePlus> images,
+            boolean viz, FlowType flowType,
+            final float maxmotion,
+            boolean doX, boolean doY,
+            FlowSink sink) {
+        return getOpticalFlowBasedMovement(images, viz, flowType, maxmotion,
+                doX, doY, sink, null);
+    }
+    
+    // with motions, the marker is searched in every frame and the flow
+    // statistics inside it go to motions, one record per pair in pair order
+    public int getOpticalFlowBasedMovement(
+            Iterator<ImagePlus> images,
+            boolean viz, FlowType flowType,
+            final float maxmotion,
+            boolean doX, boolean doY,
+            FlowSink sink, MotionSink motions) {
+        return getOpticalFlowBasedMovement(images, viz, flowType, maxmotion,
+                doX, doY, sink, motions, null);
+    }
+    
+    // with bounds, the marker found in every frame also goes to bounds (in
+    // frame order), so no separate bounds pass has to decode the frames
+    public int getOpticalFlowBasedMovement(
+            Iterator<ImagePlus> images,
+            boolean viz, FlowType flowType,
+            final float maxmotion,
+            boolean doX, boolean doY,
+            FlowSink sink, MotionSink motions, BoundsSink bounds) {
+        // markers of the frames for roiFlow and motions are tracked, for
+        // bounds alone they are searched as in getBoundsBasedMovement
+        final BoundsTracker tracker = roiFlow || motions != null
+                || bounds != null && trackBounds ? new BoundsTracker(boundsColor) : null;
+        return flowPairs(prepared(images, tracker, bounds), viz, flowType,
+                maxmotion, doX, doY, sink, motions);
+    }
+    
+    // Frames of source are decoded straight to gray and never become an
+    // ImagePlus, unless the marker is needed in the flow pass (roiFlow,
+    // motions, bounds)
+    public int getOpticalFlowBasedMovement(
+            FrameSource source,
+            boolean viz, FlowType flowType,
+            final float maxmotion,
+            boolean doX, boolean doY,
+            FlowSink sink, MotionSink motions) {
+        return getOpticalFlowBasedMovement(source, viz, flowType, maxmotion,
+                doX, doY, sink, motions, null);
+    }
+    
+    public int getOpticalFlowBasedMovement(
+            FrameSource source,
+            boolean viz, FlowType flowType,
+            final float maxmotion,
+            boolean doX, boolean doY,
+            FlowSink sink, MotionSink motions, BoundsSink bounds) {
+        if (roiFlow || motions != null || bounds != null)
+            return getOpticalFlowBasedMovement(source.iterator(), viz, flowType,
+                    maxmotion, doX, doY, sink, motions, bounds);
+        return flowPairs(prepared(source.grayIterator()), viz, flowType,
+                maxmotion, doX, doY, sink, motions);
+    }
+
+    
+    private int flowPairs(
+            Iterator<FramePyramid> frames,
+            boolean viz, FlowType flowType,
+            final float maxmotion,
+            boolean doX, boolean doY,
+            FlowSink sink, MotionSink motions) {
+        if (!frames.hasNext())
+            return 0;
+
+        final FramePyramid frame0 = frames.next();
+        final int w = frame0.width;
+        final int h = frame0.height;
+        
+        ImageProcessor vizIp = new ColorProcessor(w, h);
+        ImagePlus vizImg = new ImagePlus("flow", vizIp);
+        
+        if (viz)
+            vizImg.show();
+        
+        // a sequence wide range is applied in pair order when delivering,
+        // otherwise every pair is rendered right away by its worker
+        final MotionRange range = maxmotion <= 0 && autoRange == AutoRange.Sequence
+                ? new MotionRange(percentile) : null;
+        final FlowDelivery delivery = new FlowDelivery(sink, motions, viz ? vizImg : null,
+                range, doX, doY);
+        final Size outSize = fullRes && scaleSize > 0 ? new Size(w, h) : null;
+        
+        if (warmStart && !FlowSetup.supportsWarmStart(flowType))
+            IJ.log("warm start is not supported by " + flowType + ", ignored");
+        if (preset != FlowPreset.Default && !FlowSetup.supportsPresets(flowType))
+            IJ.log("presets are not supported by " + flowType + ", ignored");
+        final FlowSetup setup = new FlowSetup(flowType, preset,
+                warmStart && FlowSetup.supportsWarmStart(flowType));
+        
+        // every frame is converted once and shared by the two pairs it takes
+        // part in; it is released once the second of those has been delivered
+        final ArrayDeque<Future<FlowPair>> pending = new ArrayDeque<>();
+        // a warm started pair needs the flow of the one before it, so pairs
+        // run right away on this thread
+        final ExecutorService pool = setup.warmStart ? null
+                : flowPool != null ? flowPool
+                : threads > 1 ? newFlowExecutor(threads) : null;
+        final int window = 2 * Math.max(1, threads);
+        // set when the pass ends early: pairs not started yet do nothing
+        final AtomicBoolean aborted = new AtomicBoolean();
+        Mat seed = null;
+        
+        FramePyramid prev = frame0;
+        FramePyramid cur = prev;
+        delivery.frames.add(cur);
+        
+        try {
+            while (true) {
+                // an empty region leaves the whole field zero, for pair 0
+                // (frame 0 with itself) as well as for skipped pairs
+                final boolean skip = prev != cur && isStatic(prev, cur);
+                if (skip)
+                    stats.count(Counter.Skipped, 1);
+                final Rectangle region = skip || prev == cur ? new Rectangle()
+                        : roiFlow ? flowRegion(prev.bounds, cur.bounds,
+                                roiMargin, scaleSize, cur.gray().cols(), cur.gray().rows())
+                        : null;
+                final Rectangle object = motions != null ? prev.bounds : null;
+                final Future<FlowPair> pair = submitPair(pool, aborted, prev.gray(),
+                        cur.gray(), setup, seed, region, object, outSize, range == null,
+                        maxmotion, doX, doY);
+                pending.add(pair);
+                if (setup.warmStart) {
+                    if (seed != null)
+                        seed.release();
+                    seed = done(pair).seed;
+                }
+                if (pending.size() >= window) {
+                    delivery.deliver(pending.poll());
+                }
+                
+                if (!frames.hasNext())
+                    break;
+                prev = cur;
+                cur = frames.next();
+                delivery.frames.add(cur);
+            }
+            while (!pending.isEmpty()) {
+                delivery.deliver(pending.poll());
+            }
+            delivery.finish();
+        } finally {
+            // pairs still running use the frames and the flow instances
+            aborted.set(true);
+            for (final Future<FlowPair> pair : pending) {
+                discard(pair);
+            }
+            closeQuietly(frames);
+            if (pool != null && pool != flowPool)
+                shutdownAndWait(pool);
+            if (seed != null)
+                seed.release();
+            for (final FramePyramid frame : delivery.frames) {
+                frame.release();
+            }
+            delivery.discard();
         }
         
         if (viz)
             vizImg.close();
         
-        return imagesOut;
+        return delivery.emitted;
+    }
+    
+    // if static= is set and the frames differ by less than it at the level
+    // of at most CHANGE_SIZE pixels wide
+    private boolean isStatic(final FramePyramid frame0, final FramePyramid frame1) {
+        if (staticThreshold <= 0)
+            return false;
+        final long t = System.nanoTime();
+        final int level = changeLevel(frame0.gray().cols());
+        final double diff = meanAbsDiff(frame0.level(level), frame1.level(level));
+        Stats.lap(stats, Stage.Change, t);
+        return diff < staticThreshold;
+    }
+    
+    // frames prepared one by one as they are taken
+    private Iterator<FramePyramid> prepared(final Iterator<ImagePlus> images,
+            final BoundsTracker tracker) {
+        return new Prepared<>(images, img -> prepareFrame(img, tracker, false));
+    }
+    
+    // the marker of each frame also goes to bounds (if given), searched in
+    // the whole frame without a tracker
+    private Iterator<FramePyramid> prepared(final Iterator<ImagePlus> images,
+            final BoundsTracker tracker, final BoundsSink bounds) {
+        if (bounds == null)
+            return prepared(images, tracker);
+        final int[] frame = {0};
+        return new Prepared<>(images, img -> {
+            final FramePyramid prepared = prepareFrame(img, tracker, true);
+            bounds.accept(frame[0]++, prepared.bounds);
+            return prepared;
+        });
+    }
+    
+    // the same for frames decoded to gray, without markers
+    private Iterator<FramePyramid> prepared(final Iterator<Mat> grays) {
+        return new Prepared<>(grays, gray -> FramePyramid.of(gray, scaleSize, stats));
+    }
+    
+    // closing passes on to the frames (a prefetching FrameSource pass)
+    static private class Prepared<S> implements Iterator<FramePyramid>, AutoCloseable {
+        private final Iterator<S> frames;
+        private final Function<S, FramePyramid> prepare;
+        
+        Prepared(final Iterator<S> frames, final Function<S, FramePyramid> prepare) {
+            this.frames = frames;
+            this.prepare = prepare;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return frames.hasNext();
+        }
+        
+        @Override
+        public FramePyramid next() {
+            return prepare.apply(frames.next());
+        }
+        
+        @Override
+        public void close() {
+            closeQuietly(frames);
+        }
+    }
+    
+    // ends a pass, also an aborted one: a prefetching source stops loading
+    static private void closeQuietly(final Iterator<?> frames) {
+        if (frames instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) frames).close();
+            } catch (Exception e) {
+                // nothing left to release
+            }
+        }
+    }
+    
+    // the marker is searched for with tracker (if given), or in the whole
+    // frame if locate is set
+    private FramePyramid prepareFrame(final ImagePlus img, final BoundsTracker tracker,
+            final boolean locate) {
+        final FramePyramid frame = FramePyramid.of(img, scaleSize, stats);
+        if (tracker != null || locate) {
+            final long t = System.nanoTime();
+            frame.bounds = tracker != null
+                    ? tracker.next(img.getProcessor())
+                    : getBounds(img.getProcessor(), boundsColor);
+            Stats.lap(stats, Stage.Bounds, t);
+        }
+        return frame;
+    }
+    
+// ######## sparse point tracks for all images (SparseLK)
+    // Features are detected and tracked at compute resolution, frame by
+    // frame on this thread; every tracked point goes to sink in input
+    // pixels. Returns the number of frames.
+    public int trackFeatures(Iterator<ImagePlus> images, TrackSink sink) {
+        return trackFrames(prepared(images, null), sink);
+    }
+    
+    // frames of source are decoded straight to gray
+    public int trackFeatures(FrameSource source, TrackSink sink) {
+        return trackFeatures(source, sink, null);
+    }
+    
+    // unless the marker of every frame is to go to bounds as well, which
+    // is then searched in the same pass
+    public int trackFeatures(FrameSource source, TrackSink sink, BoundsSink bounds) {
+        if (bounds == null)
+            return trackFrames(prepared(source.grayIterator()), sink);
+        final BoundsTracker tracker = trackBounds ? new BoundsTracker(boundsColor) : null;
+        return trackFrames(prepared(source.iterator(), tracker, bounds), sink);
+    }
+    
+    private int trackFrames(Iterator<FramePyramid> frames, TrackSink sink) {
+        final PointTracker tracker = new PointTracker(maxFeatures, redetect);
+        final float factor = 1 << scaleSize;
+        FramePyramid prev = null;
+        int frame = 0;
+        try {
+            while (frames.hasNext()) {
+                final FramePyramid cur = frames.next();
+                final long t = System.nanoTime();
+                tracker.next(cur.gray());
+                Stats.lap(stats, Stage.Track, t);
+                for (int i = 0; i < tracker.count(); ++i) {
+                    // pixel centers of the downscaled frame
+                    sink.accept(frame, tracker.id(i),
+                            (tracker.x(i) + 0.5f) * factor - 0.5f,
+                            (tracker.y(i) + 0.5f) * factor - 0.5f);
+                }
+                // the tracker has moved on to cur
+                if (prev != null)
+                    prev.release();
+                prev = cur;
+                ++frame;
+            }
+        } finally {
+            closeQuietly(frames);
+            if (prev != null)
+                prev.release();
+        }
+        return frame;
+    }
+    
+// ######## receives the tracked points of each frame in order
+    @FunctionalInterface
+    public interface TrackSink {
+        // id stays with a feature for as long as it is tracked
+        void accept(int frame, int id, float x, float y);
+    }
+    
+// ######## flow and visualization of a single frame pair
+    static private class FlowPair {
+        final Mat flow;
+        final ImagePlus img;
+        // copy of the flow at compute resolution seeding the next pair, null
+        // without warm start
+        final Mat seed;
+        // flow statistics inside the marker, null if not asked for or found
+        final RegionMotion motion;
+        // part of flow that was computed, the rest is zero: null for all of
+        // it, empty for a static pair
+        final Rectangle computed;
+        
+        FlowPair(final Mat flow, final ImagePlus img, final Mat seed,
+                final RegionMotion motion, final Rectangle computed) {
+            this.flow = flow;
+            this.img = img;
+            this.seed = seed;
+            this.motion = motion;
+            this.computed = computed;
+        }
+    }
+    
+    // result of a finished (or inline) pair
+    // waits for a pair of an aborted pass, whatever its outcome, and
+    // releases its flow
+    static private void discard(final Future<FlowPair> future) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                final FlowPair pair = future.get();
+                if (pair != null) {
+                    pair.flow.release();
+                    if (pair.seed != null)
+                        pair.seed.release();
+                }
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException | CancellationException e) {
+                break;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+    
+    static private FlowPair done(final Future<FlowPair> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+    
+    // the flow stays at compute resolution unless outSize is given; the
+    // statistics inside object (input resolution) are taken before upsampling
+    private FlowPair makeFlowPair(final Mat gray0, final Mat gray1, FlowSetup setup,
+            final Mat seed, final Rectangle region, final Rectangle object,
+            final Size outSize, boolean render,
+            final float maxmotion, boolean doX, boolean doY) {
+        if (warmUp)
+            FLOW_POOL.warmUp(setup, gray0.cols(), gray0.rows());
+        long t = System.nanoTime();
+        Mat flow = region != null
+                ? computeFlow(gray0, gray1, setup, seed, region)
+                : computeFlow(gray0, gray1, setup, seed);
+        if (region != null && region.isEmpty()) {
+            t = System.nanoTime();
+        } else {
+            t = Stats.lap(stats, Stage.Flow, t);
+        }
+        stats.count(Counter.NativeAllocations, 1);
+        final Mat next = setup.warmStart ? flow.clone() : null;
+        RegionMotion motion = null;
+        if (object != null && !object.isEmpty()) {
+            // tables over the marker only, the one rectangle asked for
+            motion = new FlowIntegral(flow, FlowIntegral.toField(object, scaleSize))
+                    .motion(object, scaleSize);
+            t = Stats.lap(stats, Stage.Motion, t);
+        }
+        if (outSize != null) {
+            final Mat full = upsampleFlow(flow, outSize, 1 << scaleSize);
+            flow.release();
+            flow = full;
+            Stats.lap(stats, Stage.Upsample, t);
+            stats.count(Counter.NativeAllocations, 1);
+        }
+        // the computed region at the resolution of flow
+        Rectangle computed = region;
+        if (region != null && outSize != null) {
+            final int f = 1 << scaleSize;
+            computed = new Rectangle(region.x * f, region.y * f, region.width * f,
+                    region.height * f).intersection(new Rectangle(0, 0, flow.cols(), flow.rows()));
+        }
+        if (!render)
+            return new FlowPair(flow, null, next, motion, computed);
+        return new FlowPair(flow, renderFlow(flow, maxmotion, doX, doY, null), next,
+                motion, computed);
+    }
+    
+    // visualization at the resolution of the flow, accumulating magnitudes
+    // if asked to
+    private ImagePlus renderFlow(final Mat flow, final float maxmotion,
+            boolean doX, boolean doY, MotionRange accumulate) {
+        long t = System.nanoTime();
+        Mat flowImg = drawOpticalFlow(flow, maxmotion, doX, doY, accumulate);
+        t = Stats.lap(stats, Stage.Colorize, t);
+        ImagePlus img = toImagePlus(flowImg);
+        flowImg.release();
+        Stats.lap(stats, Stage.ToImagePlus, t);
+        stats.count(Counter.NativeAllocations, 1);
+        return img;
+    }
+    
+    // runs on the pool, or right away on the calling thread without one
+    // null once aborted is set before the pair started
+    private Future<FlowPair> submitPair(ExecutorService pool, final AtomicBoolean aborted,
+            final Mat gray0, final Mat gray1, FlowSetup setup, final Mat seed,
+            final Rectangle region, final Rectangle object, final Size outSize,
+            boolean render, final float maxmotion, boolean doX, boolean doY) {
+        final Callable<FlowPair> task = () -> aborted.get() ? null
+                : makeFlowPair(gray0, gray1, setup, seed, region, object, outSize,
+                        render, maxmotion, doX, doY);
+        if (pool != null) {
+            return pool.submit(task);
+        }
+        FutureTask<FlowPair> future = new FutureTask<>(task);
+        future.run();
+        return future;
+    }
+    
+// ######## hands computed pairs to the sink, strictly in pair order
+    private class FlowDelivery {
+        // frames still referenced by pairs that have not been delivered
+        final ArrayDeque<FramePyramid> frames = new ArrayDeque<>();
+        private final FlowSink sink;
+        private final MotionSink motions;
+        private final ImagePlus vizImg;
+        private final MotionRange range;
+        private final boolean doX;
+        private final boolean doY;
+        // flows held back until the range has been estimated on them
+        private final ArrayList<Mat> sample = new ArrayList<>();
+        private boolean frozen = false;
+        private int received = 0;
+        int emitted = 0;
+        
+        FlowDelivery(FlowSink sink, MotionSink motions, ImagePlus vizImg,
+                MotionRange range, boolean doX, boolean doY) {
+            this.sink = sink;
+            this.motions = motions;
+            this.vizImg = vizImg;
+            this.range = range;
+            this.doX = doX;
+            this.doY = doY;
+        }
+        
+        void deliver(Future<FlowPair> future) {
+            final FlowPair pair = done(future);
+            // pair 0 compares frame 0 with itself, from then on pair i is
+            // the last user of frame i-1
+            if (motions != null) {
+                final Iterator<FramePyramid> it = frames.iterator();
+                final FramePyramid frame0 = it.next();
+                final FramePyramid frame1 = received > 0 ? it.next() : frame0;
+                motions.accept(new MotionRecord(received, frame0.bounds,
+                        markerMotion(frame0.bounds, frame1.bounds), pair.motion));
+            }
+            if (received++ > 0)
+                frames.poll().release();
+            
+            if (pair.img != null) {
+                emit(pair.flow, pair.img);
+                return;
+            }
+            // zeros of static pairs (and pair 0) and outside a computed
+            // region are no motion and stay out of the range
+            final Rectangle computed = pair.computed;
+            final boolean zero = computed != null && computed.isEmpty();
+            // a zero flow looks the same in any range: it only waits in the
+            // sample behind pairs with motion (and counts towards its size,
+            // so a static stretch does not hold flows without bound)
+            if (rangeSample > 0 && !frozen && !(zero && sample.isEmpty())) {
+                if (!zero)
+                    range.accumulate(pair.flow, computed, renderThreads);
+                sample.add(pair.flow);
+                if (sample.size() >= rangeSample)
+                    flushSample();
+                return;
+            }
+            if (zero) {
+                emit(pair.flow, renderFlow(pair.flow, range.range(), doX, doY, null));
+                return;
+            }
+            // rendered with the range of all previous pairs while adding
+            // this pair's magnitudes in the same pass; only the first pair
+            // with motion needs a pass of its own, and a region one of its
+            // own after taking the range
+            final boolean first = range.isEmpty();
+            if (first)
+                range.accumulate(pair.flow, computed, renderThreads);
+            final float maxrad = range.range();
+            final boolean whole = computed == null;
+            final MotionRange accumulate = first || frozen || !whole ? null : range;
+            // before emitting, the sink may release the flow
+            if (!first && !frozen && !whole)
+                range.accumulate(pair.flow, computed, renderThreads);
+            emit(pair.flow, renderFlow(pair.flow, maxrad, doX, doY, accumulate));
+        }
+        
+        void finish() {
+            if (!sample.isEmpty())
+                flushSample();
+        }
+        
+        // flows held back by an aborted pass
+        void discard() {
+            for (final Mat flow : sample) {
+                flow.release();
+            }
+            sample.clear();
+        }
+        
+        // the range is fixed from here on
+        private void flushSample() {
+            frozen = true;
+            final float maxrad = range.range();
+            for (final Mat flow : sample) {
+                emit(flow, renderFlow(flow, maxrad, doX, doY, null));
+            }
+            sample.clear();
+        }
+        
+        private void emit(final Mat flow, final ImagePlus img) {
+            sink.accept(emitted++, flow, img);
+            if (vizImg != null)
+                vizImg.setImage(img);
+        }
+    }
+    
+    static private ExecutorService newFlowExecutor(final int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "flowig-flow-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+    
+    // Takes no more tasks and waits until those taken have finished, also
+    // if interrupted meanwhile (the interrupt is kept): native flow
+    // instances may only be released once no worker computes with them.
+    static private void shutdownAndWait(final ExecutorService pool) {
+        pool.shutdown();
+        boolean interrupted = false;
+        while (!pool.isTerminated()) {
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+    
+// ######## receives the flow of each frame pair in order
+    @FunctionalInterface
+    public interface FlowSink {
+        // flow is the sink's from here on: it releases it (or hands it on)
+        // once used, so native memory stays flat over long sequences
+        void accept(int index, Mat flow, ImagePlus flowImg);
     }
     
 // ######## flow type
@@ -381,211 +2036,1902 @@ public class Flowig_ implements PlugIn {
         FarneBack,
         DeepFlow,
         DIS,
-        DualTVL1
+        DualTVL1,
+        // sparse: point tracks (trackFeatures) instead of a dense field
+        SparseLK
     }
    
 // ######## flow computation
     static public Mat makeFlow(Mat mat0, Mat mat1, FlowType type) {
-        opencv_imgproc.cvtColor(mat0, mat0, opencv_imgproc.COLOR_BGR2GRAY);
-        opencv_imgproc.equalizeHist(mat0, mat0);
-        opencv_imgproc.cvtColor(mat1, mat1, opencv_imgproc.COLOR_BGR2GRAY);
-        opencv_imgproc.equalizeHist(mat1, mat1);
-        opencv_video.DenseOpticalFlow flow;
-        switch (type) {
+        return computeFlow(preprocess(mat0), preprocess(mat1), type);
+    }
+    
+// ######## frame preprocessing (downscale, grayscale, equalize)
+    static public Mat prepareFrame(final ImagePlus img, final int scaleSize) {
+        return prepareFrame(img, scaleSize, null);
+    }
+    
+    // stage times are recorded in stats (if given); the frame is converted
+    // to gray before downscaling, so pyrDown filters one channel instead of 3
+    static public Mat prepareFrame(final ImagePlus img, final int scaleSize, final Stats stats) {
+        long t = System.nanoTime();
+        Mat mat = toMat(img);
+        t = Stats.lap(stats, Stage.ToMat, t);
+        Stats.count(stats, Counter.NativeAllocations, 1);
+        toGray(mat);
+        Stats.lap(stats, Stage.Gray, t);
+        return prepareGray(mat, scaleSize, stats);
+    }
+    
+    // downscaling and equalization of an 8 bit gray frame, in place
+    static public Mat prepareGray(final Mat mat, final int scaleSize, final Stats stats) {
+        long t = System.nanoTime();
+        for (int i = 0; i < scaleSize; ++i) {
+            opencv_imgproc.pyrDown(mat, mat);
+        }
+        t = Stats.lap(stats, Stage.PyrDown, t);
+        opencv_imgproc.equalizeHist(mat, mat);
+        Stats.lap(stats, Stage.Gray, t);
+        return mat;
+    }
+    
+    static public Mat preprocess(Mat mat) {
+        toGray(mat);
+        opencv_imgproc.equalizeHist(mat, mat);
+        return mat;
+    }
+    
+    static private void toGray(Mat mat) {
+        switch (mat.channels()) {
+            case 4:
+                opencv_imgproc.cvtColor(mat, mat, opencv_imgproc.COLOR_BGRA2GRAY);
+                break;
+            case 3:
+                opencv_imgproc.cvtColor(mat, mat, opencv_imgproc.COLOR_BGR2GRAY);
+                break;
             default:
-            case SparseToDense:
-                flow = opencv_optflow.createOptFlow_SparseToDense();
                 break;
+        }
+    }
+    
+// ######## flow restricted to a region of the frames
+    // Region of a pair at compute resolution: the union of both frames'
+    // marker bounds (input resolution) plus margin, grown to at least
+    // MIN_COMPUTE_SIZE on each side where the frame allows it (DIS fails on
+    // smaller images). Null, i.e. the whole frame, if neither frame has a
+    // marker or the region would cover most of the frame anyway.
+    static public Rectangle flowRegion(final Rectangle bounds0, final Rectangle bounds1,
+            final int margin, final int scaleSize, final int cols, final int rows) {
+        final boolean has0 = bounds0 != null && !bounds0.isEmpty();
+        final boolean has1 = bounds1 != null && !bounds1.isEmpty();
+        if (!has0 && !has1)
+            return null;
+        final Rectangle union = has0 && has1 ? bounds0.union(bounds1)
+                : new Rectangle(has0 ? bounds0 : bounds1);
+        union.grow(margin, margin);
+        
+        // to compute resolution, rounded outwards
+        final int x0 = union.x >> scaleSize;
+        final int y0 = union.y >> scaleSize;
+        final int x1 = (union.x + union.width + (1 << scaleSize) - 1) >> scaleSize;
+        final int y1 = (union.y + union.height + (1 << scaleSize) - 1) >> scaleSize;
+        final Rectangle region = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        if (region.width < MIN_COMPUTE_SIZE)
+            region.grow((MIN_COMPUTE_SIZE - region.width + 1) / 2, 0);
+        if (region.height < MIN_COMPUTE_SIZE)
+            region.grow(0, (MIN_COMPUTE_SIZE - region.height + 1) / 2);
+        
+        // shifted back into the frame rather than cut, so it keeps its size
+        region.width = Math.min(region.width, cols);
+        region.height = Math.min(region.height, rows);
+        region.x = Math.max(0, Math.min(region.x, cols - region.width));
+        region.y = Math.max(0, Math.min(region.y, rows - region.height));
+        if ((long) region.width * region.height * 4 > (long) cols * rows * 3)
+            return null;
+        return region;
+    }
+    
+    // flow inside region only, placed into an otherwise zero field of the
+    // frame size. The region is copied out, DIS crashes on non-continuous views.
+    static public Mat computeFlow(final Mat gray0, final Mat gray1, FlowSetup setup,
+            final Mat initial, final Rectangle region) {
+        if (region.isEmpty())
+            return new Mat(gray0.size(), opencv_core.CV_32FC2, new opencv_core.Scalar(0.0));
+        final opencv_core.Rect rect = new opencv_core.Rect(
+                region.x, region.y, region.width, region.height);
+        final Mat view0 = new Mat(gray0, rect).clone();
+        final Mat view1 = new Mat(gray1, rect).clone();
+        final Mat seed = initial != null ? new Mat(initial, rect) : null;
+        final Mat part = computeFlow(view0, view1, setup, seed);
+        
+        final Mat flow = new Mat(gray0.size(), opencv_core.CV_32FC2, new opencv_core.Scalar(0.0));
+        final Mat target = new Mat(flow, rect);
+        part.copyTo(target);
+        part.release();
+        target.close();
+        view0.close();
+        view1.close();
+        if (seed != null)
+            seed.close();
+        return flow;
+    }
+    
+// ######## change between the frames of a pair
+    static final int CHANGE_SIZE = 128;
+    
+    // first FramePyramid level at most CHANGE_SIZE wide
+    static public int changeLevel(final int cols) {
+        int level = 0;
+        while ((cols >> level) > CHANGE_SIZE)
+            ++level;
+        return level;
+    }
+    
+    // mean absolute difference of two gray frames of the same size
+    static public double meanAbsDiff(final Mat gray0, final Mat gray1) {
+        final Mat diff = new Mat();
+        opencv_core.absdiff(gray0, gray1, diff);
+        final double mean = opencv_core.mean(diff).get(0);
+        diff.release();
+        return mean;
+    }
+    
+// ######## flow field at a higher resolution
+    // one bilinear resize, vectors are scaled by factor to the new pixel size
+    static public Mat upsampleFlow(final Mat flow, final Size size, final double factor) {
+        final Mat full = new Mat();
+        opencv_imgproc.resize(flow, full, size, 0, 0, opencv_imgproc.INTER_LINEAR);
+        full.convertTo(full, -1, factor, 0);
+        return full;
+    }
+    
+// ######## a frame prepared for flow computation and its coarser levels
+    // Built once per frame and shared by the two pairs the frame takes part
+    // in. Level 0 is the equalized gray frame at compute resolution (after
+    // scaleSize pyrDowns), level i+1 is pyrDown of level i; coarser levels
+    // are only built when asked for and are then kept with the frame.
+    static public class FramePyramid {
+        private final ArrayList<Mat> levels = new ArrayList<>();
+        // input resolution
+        final int width;
+        final int height;
+        // marker bounds at input resolution, if searched for
+        Rectangle bounds = null;
+        
+        public FramePyramid(final Mat gray, final int width, final int height) {
+            levels.add(gray);
+            this.width = width;
+            this.height = height;
+        }
+        
+        static public FramePyramid of(final ImagePlus img, final int scaleSize,
+                final Stats stats) {
+            return new FramePyramid(prepareFrame(img, scaleSize, stats),
+                    img.getWidth(), img.getHeight());
+        }
+        
+        // from an 8 bit gray frame at input resolution, which is taken over
+        static public FramePyramid of(final Mat gray, final int scaleSize,
+                final Stats stats) {
+            final int width = gray.cols();
+            final int height = gray.rows();
+            return new FramePyramid(prepareGray(gray, scaleSize, stats), width, height);
+        }
+        
+        public Mat gray() {
+            return levels.get(0);
+        }
+        
+        public synchronized Mat level(final int i) {
+            while (levels.size() <= i) {
+                final Mat coarser = new Mat();
+                opencv_imgproc.pyrDown(levels.get(levels.size() - 1), coarser);
+                levels.add(coarser);
+            }
+            return levels.get(i);
+        }
+        
+        public synchronized int levels() {
+            return levels.size();
+        }
+        
+        public synchronized void release() {
+            for (final Mat level : levels) {
+                level.release();
+            }
+            levels.clear();
+        }
+    }
+    
+// ######## sparse feature tracking with pyramidal Lucas-Kanade
+    // Features (goodFeaturesToTrack) are followed from frame to frame with
+    // calcOpticalFlowPyrLK; lost ones are dropped. New features are detected
+    // away from the remaining ones once fewer than redetect * maxPoints are
+    // left. Coordinates are those of the frames given to next.
+    static public class PointTracker {
+        static final int WINDOW = 21;
+        static final int LEVELS = 3;
+        static final double QUALITY = 0.01;
+        static final int MIN_DISTANCE = 8;
+        
+        private final int maxPoints;
+        private final int minPoints;
+        // frame the points are in, owned by the caller
+        private Mat prev = null;
+        // interleaved x, y
+        private float[] points = new float[0];
+        private int[] ids = new int[0];
+        private int count = 0;
+        private int nextId = 0;
+        
+        public PointTracker(final int maxPoints, final float redetect) {
+            this.maxPoints = maxPoints;
+            this.minPoints = Math.max(1, (int) (maxPoints * redetect));
+        }
+        
+        public int count() {
+            return count;
+        }
+        
+        public int id(final int i) {
+            return ids[i];
+        }
+        
+        public float x(final int i) {
+            return points[2 * i];
+        }
+        
+        public float y(final int i) {
+            return points[2 * i + 1];
+        }
+        
+        // moves the points to gray, which has to stay valid until the next
+        // call; returns the number of points
+        public int next(final Mat gray) {
+            if (prev != null && count > 0)
+                track(gray);
+            if (count < minPoints)
+                detect(gray);
+            prev = gray;
+            return count;
+        }
+        
+        private void track(final Mat gray) {
+            final Mat from = new Mat(count, 1, opencv_core.CV_32FC2);
+            new FloatPointer(from.data()).put(points, 0, 2 * count);
+            final Mat to = new Mat();
+            final Mat status = new Mat();
+            final Mat error = new Mat();
+            opencv_video.calcOpticalFlowPyrLK(prev, gray, from, to, status, error,
+                    new Size(WINDOW, WINDOW), LEVELS,
+                    new opencv_core.TermCriteria(
+                            opencv_core.TermCriteria.COUNT + opencv_core.TermCriteria.EPS, 30, 0.01),
+                    0, 1e-4);
+            
+            final float[] moved = new float[2 * count];
+            final byte[] found = new byte[count];
+            new FloatPointer(to.data()).get(moved);
+            status.data().get(found);
+            final int cols = gray.cols();
+            final int rows = gray.rows();
+            int kept = 0;
+            for (int i = 0; i < count; ++i) {
+                final float x = moved[2 * i];
+                final float y = moved[2 * i + 1];
+                if (found[i] != 0 && x >= 0 && y >= 0 && x < cols && y < rows) {
+                    points[2 * kept] = x;
+                    points[2 * kept + 1] = y;
+                    ids[kept++] = ids[i];
+                }
+            }
+            count = kept;
+            from.release();
+            to.release();
+            status.release();
+            error.release();
+        }
+        
+        private void detect(final Mat gray) {
+            final Mat mask = new Mat(gray.size(), opencv_core.CV_8UC1, new opencv_core.Scalar(255.0));
+            for (int i = 0; i < count; ++i) {
+                opencv_imgproc.circle(mask,
+                        new opencv_core.Point(Math.round(points[2 * i]), Math.round(points[2 * i + 1])),
+                        MIN_DISTANCE, new opencv_core.Scalar(0.0), -1, opencv_core.LINE_8, 0);
+            }
+            final Mat corners = new Mat();
+            opencv_imgproc.goodFeaturesToTrack(gray, corners, maxPoints - count,
+                    QUALITY, MIN_DISTANCE, mask, 3, false, 0.04);
+            final int found = corners.rows();
+            if (found > 0) {
+                points = Arrays.copyOf(points, 2 * (count + found));
+                ids = Arrays.copyOf(ids, count + found);
+                new FloatPointer(corners.data()).get(points, 2 * count, 2 * found);
+                for (int i = 0; i < found; ++i) {
+                    ids[count + i] = nextId++;
+                }
+                count += found;
+            }
+            corners.release();
+            mask.release();
+        }
+    }
+    
+// ######## flow computation on preprocessed frames
+    static public Mat computeFlow(final Mat gray0, final Mat gray1, FlowType type) {
+        return computeFlow(gray0, gray1, FLOW_POOL.get(type));
+    }
+    
+    // a warm started setup refines a copy of initial, or a zero flow if
+    // there is none yet
+    static public Mat computeFlow(final Mat gray0, final Mat gray1, FlowSetup setup,
+            final Mat initial) {
+        final opencv_video.DenseOpticalFlow flow = FLOW_POOL.get(setup);
+        if (!setup.warmStart)
+            return computeFlow(gray0, gray1, flow);
+        Mat matFlow = initial != null ? initial.clone()
+                : new Mat(gray0.size(), opencv_core.CV_32FC2, new opencv_core.Scalar(0.0));
+        flow.calc(gray0, gray1, matFlow);
+        return matFlow;
+    }
+    
+    static public Mat computeFlow(final Mat gray0, final Mat gray1,
+            opencv_video.DenseOpticalFlow flow) {
+        Mat matFlow = new Mat();
+        flow.calc(gray0, gray1, matFlow);
+        return matFlow;
+    }
+    
+    static public opencv_video.DenseOpticalFlow createFlow(FlowType type) {
+        return createFlow(new FlowSetup(type));
+    }
+    
+    static public opencv_video.DenseOpticalFlow createFlow(FlowSetup setup) {
+        switch (setup.type) {
+            case SparseLK:
+                throw new IllegalArgumentException("SparseLK has no dense flow, see trackFeatures");
+            default:
+            case SparseToDense:
+                return opencv_optflow.createOptFlow_SparseToDense();
             case FarneBack:
-                flow = opencv_optflow.createOptFlow_Farneback();
-                break;
+                if (!setup.warmStart && setup.preset == FlowPreset.Default)
+                    return opencv_optflow.createOptFlow_Farneback();
+                final opencv_video.FarnebackOpticalFlow farneback
+                        = opencv_video.FarnebackOpticalFlow.create();
+                switch (setup.preset) {
+                    case UltraFast:
+                        farneback.setNumLevels(3);
+                        farneback.setWinSize(9);
+                        farneback.setNumIters(3);
+                        break;
+                    case Fast:
+                        farneback.setNumLevels(4);
+                        farneback.setNumIters(5);
+                        break;
+                    default:
+                        break;
+                }
+                if (setup.warmStart) {
+                    farneback.setFlags(opencv_video.OPTFLOW_USE_INITIAL_FLOW);
+                    farneback.setNumLevels(FlowSetup.WARM_LEVELS);
+                }
+                return farneback;
             case DeepFlow:
-                flow = opencv_optflow.createOptFlow_DeepFlow();
-                break;
+                return opencv_optflow.createOptFlow_DeepFlow();
             case DIS:
-                flow = opencv_optflow.createOptFlow_DIS();
-                break;
+                // DIS refines any CV_32FC2 flow of the frame size it is given
+                switch (setup.preset) {
+                    case UltraFast:
+                        return opencv_optflow.createOptFlow_DIS(
+                                opencv_optflow.DISOpticalFlow.PRESET_ULTRAFAST);
+                    case Medium:
+                        return opencv_optflow.createOptFlow_DIS(
+                                opencv_optflow.DISOpticalFlow.PRESET_MEDIUM);
+                    default:
+                        return opencv_optflow.createOptFlow_DIS();
+                }
             case DualTVL1:
-                flow = opencv_video.createOptFlow_DualTVL1();
-                break;
+                final opencv_video.DualTVL1OpticalFlow tvl1 = opencv_video.createOptFlow_DualTVL1();
+                switch (setup.preset) {
+                    case UltraFast:
+                        tvl1.setScalesNumber(3);
+                        tvl1.setWarpingsNumber(1);
+                        tvl1.setInnerIterations(10);
+                        tvl1.setEpsilon(0.05);
+                        break;
+                    case Fast:
+                        tvl1.setScalesNumber(4);
+                        tvl1.setWarpingsNumber(3);
+                        tvl1.setInnerIterations(20);
+                        tvl1.setEpsilon(0.02);
+                        break;
+                    default:
+                        break;
+                }
+                if (setup.warmStart) {
+                    tvl1.setUseInitialFlow(true);
+                    tvl1.setScalesNumber(FlowSetup.WARM_LEVELS);
+                }
+                return tvl1;
+        }
+    }
+    
+// ######## parameter profiles of the flow algorithms
+    // Default keeps each algorithm's own defaults (DIS: PRESET_FAST). Medium
+    // is the most accurate profile, UltraFast the cheapest.
+    static public enum FlowPreset {
+        Default,
+        UltraFast,
+        Fast,
+        Medium
+    }
+    
+// ######## algorithm and options flow instances are created with
+    static public final class FlowSetup {
+        // pyramid levels of warm started FarneBack and DualTVL1 (5 by
+        // default), the seed already covers large motions
+        static final int WARM_LEVELS = 2;
+        
+        public final FlowType type;
+        public final FlowPreset preset;
+        public final boolean warmStart;
+        
+        public FlowSetup(final FlowType type) {
+            this(type, FlowPreset.Default, false);
+        }
+        
+        public FlowSetup(final FlowType type, final boolean warmStart) {
+            this(type, FlowPreset.Default, warmStart);
+        }
+        
+        // presets of types without any fall back to Default
+        public FlowSetup(final FlowType type, final FlowPreset preset,
+                final boolean warmStart) {
+            this.type = type;
+            this.preset = supportsPresets(type) ? preset : FlowPreset.Default;
+            this.warmStart = warmStart;
+        }
+        
+        static public boolean supportsWarmStart(final FlowType type) {
+            return type == FlowType.DIS || type == FlowType.FarneBack
+                    || type == FlowType.DualTVL1;
+        }
+        
+        static public boolean supportsPresets(final FlowType type) {
+            return supportsWarmStart(type);
+        }
+        
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof FlowSetup))
+                return false;
+            final FlowSetup other = (FlowSetup) o;
+            return type == other.type && preset == other.preset
+                    && warmStart == other.warmStart;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (type.hashCode() * 31 + preset.hashCode()) * 31 + (warmStart ? 1 : 0);
+        }
+        
+        @Override
+        public String toString() {
+            return type + " " + preset + (warmStart ? " (warm start)" : "");
+        }
+    }
+    
+// ######## flow algorithm instances, one per FlowType and thread
+    static final FlowPool FLOW_POOL = new FlowPool();
+    
+    static public class FlowPool {
+        private final ArrayList<opencv_video.DenseOpticalFlow> created = new ArrayList<>();
+        private final ThreadLocal<Slot> local = ThreadLocal.withInitial(Slot::new);
+        private volatile int generation = 0;
+        
+        static private class Slot {
+            int generation = 0;
+            final HashMap<FlowSetup, opencv_video.DenseOpticalFlow> flows = new HashMap<>();
+            final HashSet<FlowSetup> warm = new HashSet<>();
+        }
+        
+        public opencv_video.DenseOpticalFlow get(FlowType type) {
+            return get(new FlowSetup(type));
+        }
+        
+        // instance owned by the calling thread, created on first use
+        public opencv_video.DenseOpticalFlow get(FlowSetup setup) {
+            final Slot slot = local.get();
+            if (slot.generation != generation) {
+                // released since this thread last used the pool
+                slot.flows.clear();
+                slot.warm.clear();
+                slot.generation = generation;
+            }
+            opencv_video.DenseOpticalFlow flow = slot.flows.get(setup);
+            if (flow == null) {
+                flow = createFlow(setup);
+                slot.flows.put(setup, flow);
+                synchronized (created) {
+                    created.add(flow);
+                }
+            }
+            return flow;
+        }
+        
+        // runs the calling thread's instance once on blank frames, so internal
+        // buffers for this frame size are allocated before the first real pair;
+        // does nothing if this thread's instance is already warm
+        public void warmUp(FlowType type, final int w, final int h) {
+            warmUp(new FlowSetup(type), w, h);
+        }
+        
+        public void warmUp(FlowSetup setup, final int w, final int h) {
+            final opencv_video.DenseOpticalFlow flow = get(setup);
+            if (!local.get().warm.add(setup)) {
+                return;
+            }
+            Mat blank = new Mat(h, w, opencv_core.CV_8UC1, new opencv_core.Scalar(0.0));
+            computeFlow(blank, blank, flow).release();
+            blank.release();
+        }
+        
+        // frees the native instances of all threads, must not be called while
+        // flow is being computed; the pool can be used again afterwards
+        public void release() {
+            synchronized (created) {
+                for (final opencv_video.DenseOpticalFlow flow : created) {
+                    flow.collectGarbage();
+                    flow.close();
+                }
+                created.clear();
+                ++generation;
+            }
+        }
+    }
+    
+// ######## flow vector validation
+    static public boolean isFlowCorrect(float ux, float uy) {
+        return (   !Float.isNaN(ux)
+                && !Float.isNaN(uy)
+                && Math.abs(ux) < 1e9
+                && Math.abs(uy) < 1e9);
+    }
+
+// ######## flow visualization colors (as color wheel)
+    static final int RY = 15;
+    static final int YG = 6;
+    static final int GC = 4;
+    static final int CB = 11;
+    static final int BM = 13;
+    static final int MR = 6;
+    static final int NCOLS = RY + YG + GC + CB + BM + MR;
+    static final Color[] COLORWHEEL = new Color[NCOLS];
+    static {
+        int k = 0;
+        for (int i = 0; i < RY; ++i, ++k) {
+            COLORWHEEL[k] = new Color(255, 255 * i / RY, 0);
+        }
+        for (int i = 0; i < YG; ++i, ++k) {
+            COLORWHEEL[k] = new Color(255 - 255 * i / YG, 255, 0);
+        }
+        for (int i = 0; i < GC; ++i, ++k) {
+            COLORWHEEL[k] = new Color(0, 255, 255 * i / GC);
+        }
+        for (int i = 0; i < CB; ++i, ++k) {
+            COLORWHEEL[k] = new Color(0, 255 - 255 * i / CB, 255);
+        }
+        for (int i = 0; i < BM; ++i, ++k) {
+            COLORWHEEL[k] = new Color(255 * i / BM, 0, 255);
+        }
+        for (int i = 0; i < MR; ++i, ++k) {
+            COLORWHEEL[k] = new Color(255, 0, 255 - 255 * i / MR);
+        }
+    }
+    
+// ######## visualize flow vector as color
+    static public Color computeColor(float fx, float fy) {
+        return computeColor(fx, fy, true, true);
+    }
+    
+    static public Color computeColor(float fx, float fy, boolean doX, boolean doY) {
+        if (!doX) fx = 0;
+        if (!doY) fy = 0;
+        final float rad = (float) (Math.sqrt(fx * fx + fy * fy));
+        final float a = (float) (Math.atan2(-fy, -fx) / Math.PI);
+        return computeColorRad(rad, a);
+    }
+    
+    static public Color computeColorRad(final float rad, final float a) {
+        final float fk = (a + 1.0f) / 2.0f * (NCOLS - 1);
+        final int k0 = (int) fk;
+        final int k1 = (k0 + 1) % NCOLS;
+        final float f = fk - k0;
+
+        Color pix = new Color();
+
+        for (int b = 0; b < 3; b++) {
+            final float col0 = COLORWHEEL[k0].get(b) / 255.f;
+            final float col1 = COLORWHEEL[k1].get(b) / 255.f;
+
+            float col = (1 - f) * col0 + f * col1;
+
+            if (rad <= 1) {
+                col = 1 - rad * (1 - col);  // increase saturation with radius
+            } else {
+                col *= .75f; // out of range
+            }
+            pix.set(2 - b, (int) (255.f * col));
+        }
+
+        return pix;
+    }
+    
+        
+// ######## draw flow vector legend
+    public ImagePlus getFlowLegend(final int w, final int h, final float maxmotion, boolean doX, boolean doY) {
+        ImagePlus legend = toImagePlus(drawFlowLegend(w, h, maxmotion, doX, doY), "legend");
+        Overlay o = new Overlay();
+        legend.setOverlay(o);
+        OvalRoi circleRoi = new OvalRoi(0, 0, w, h);
+        circleRoi.setStrokeColor(java.awt.Color.black);
+        o.add(circleRoi);
+        Line xAxis = new Line(0, h/2, w, h/2);
+        xAxis.setStrokeColor(java.awt.Color.black);
+        o.add(xAxis);
+        Line yAxis = new Line(w/2, 0, w/2, h);
+        yAxis.setStrokeColor(java.awt.Color.black);
+        o.add(yAxis);
+        final int ticks = 10;
+        final float tickStepX = w / (float)ticks;
+        final float tickStepY = h / (float)ticks;
+        for (int i = 0; ticks > i; ++i) {
+            Line tickX = new Line(tickStepX*i, h/2-5, tickStepX*i, h/2+5);
+            tickX.setStrokeColor(java.awt.Color.black);
+            o.add(tickX);
+            Line tickY = new Line(w/2-5, tickStepY*i, w/2+5, tickStepY*i);
+            tickY.setStrokeColor(java.awt.Color.black);
+            o.add(tickY);
+        }
+        return legend;
+    }
+    
+    public Mat drawFlowLegend(final int w, final int h, final float maxmotion, boolean doX, boolean doY) {
+        final Vector size = new Vector(w,h);
+        final Vector center = size.divide(2);
+        
+        Mat leg = new Mat(h, w, opencv_core.CV_8UC3);
+        UByteRawIndexer idxOut = leg.createIndexer(true);
+        for (int x = 0; size.x > x; ++x) {
+            for (int y = 0; size.y > y; ++y) {
+                final Vector pos = (new Vector(x,y)).minus(center);
+                final Color color = computeColor((float)(pos.x/maxmotion), (float)(pos.y/maxmotion), doX, doY);
+                idxOut.put(y, x * 3, color.r*scaleColor);
+                idxOut.put(y, x * 3 + 1, color.g*scaleColor);
+                idxOut.put(y, x * 3 + 2, color.b*scaleColor);
+            }
+        }
+        
+        return leg;
+    }
+    
+// ######## visualize entire flow field with colors
+    public Mat drawOpticalFlow(final Mat flow) {
+        return drawOpticalFlow(flow, -1, true, true);
+    }
+    public Mat drawOpticalFlow(final Mat flow, final float maxmotion, boolean doX, boolean doY) {
+        return drawOpticalFlow(flow, maxmotion, doX, doY, null);
+    }
+    // magnitudes are added to accumulate (if given) while rendering
+    public Mat drawOpticalFlow(final Mat flow, final float maxmotion, boolean doX, boolean doY,
+            final MotionRange accumulate) {
+        Mat dst = new Mat(flow.size(), opencv_core.CV_8UC3);
+        final int rows = flow.rows();
+        final int stripes = stripeCount(rows, flow.cols(), renderThreads);
+
+        // determine motion range:
+        float maxrad = maxmotion;
+        if (maxmotion <= 0) {
+            // per stripe maxima, reduced afterwards
+            final float[] partial = new float[stripes];
+            forEachStripe(rows, stripes, (s, y0, y1) ->
+                    partial[s] = FlowColorizer.maxRadius2(flow, y0, y1));
+            float maxrad2 = 1;
+            for (final float p : partial) {
+                maxrad2 = Math.max(maxrad2, p);
+            }
+            maxrad = (float) Math.sqrt(maxrad2);
+        }
+
+        final float scale = 1f / maxrad;
+        forEachStripe(rows, stripes, (s, y0, y1) -> {
+            final long[] hist = accumulate != null ? MotionRange.newHistogram() : null;
+            FlowColorizer.colorize(flow, dst, y0, y1, scale, doX, doY, scaleColor, hist);
+            if (hist != null)
+                accumulate.add(hist);
+        });
+        return dst;
+    }
+    
+// ######## motion range modes for maxmotion <= 0
+    static public enum AutoRange {
+        // largest magnitude of each pair on its own
+        Frame,
+        // percentile of the magnitudes of the whole sequence so far
+        Sequence
+    }
+    
+// ######## streaming histogram of flow magnitudes
+    static public class MotionRange {
+        static final float BIN_WIDTH = 1 / 16f;
+        // magnitudes from BINS * BIN_WIDTH on share the last bin
+        static final int BINS = 1 << 14;
+        
+        private final long[] counts = newHistogram();
+        private final float percentile;
+        private long total = 0;
+        
+        public MotionRange(final float percentile) {
+            this.percentile = percentile;
+        }
+        
+        static public long[] newHistogram() {
+            return new long[BINS + 1];
+        }
+        
+        static int bin(final float magnitude) {
+            return Math.min((int) (magnitude / BIN_WIDTH), BINS);
+        }
+        
+        public synchronized boolean isEmpty() {
+            return total == 0;
+        }
+        
+        public synchronized void add(final long[] hist) {
+            for (int i = 0; i < counts.length; ++i) {
+                counts[i] += hist[i];
+                total += hist[i];
+            }
+        }
+        
+        // the same inside region only (all of flow if null)
+        public void accumulate(final Mat flow, final Rectangle region, final int threads) {
+            if (region == null) {
+                accumulate(flow, threads);
+                return;
+            }
+            final Mat view = new Mat(flow, new opencv_core.Rect(
+                    region.x, region.y, region.width, region.height));
+            accumulate(view, threads);
+            view.close();
+        }
+        
+        // adds the magnitudes of a flow field without rendering it
+        public void accumulate(final Mat flow, final int threads) {
+            final int rows = flow.rows();
+            forEachStripe(rows, stripeCount(rows, flow.cols(), threads), (s, y0, y1) -> {
+                final long[] hist = newHistogram();
+                FlowColorizer.histogram(flow, y0, y1, hist);
+                add(hist);
+            });
+        }
+        
+        // upper edge of the bin holding the percentile, at least 1 and at
+        // most the start of the overflow bin; 1 while empty
+        public synchronized float range() {
+            if (total == 0)
+                return 1;
+            final long target = (long) Math.ceil(total * Math.min(percentile, 100f) / 100.0);
+            long sum = 0;
+            for (int i = 0; i < BINS; ++i) {
+                sum += counts[i];
+                if (sum >= target && sum > 0)
+                    return Math.max(1, (i + 1) * BIN_WIDTH);
+            }
+            return BINS * BIN_WIDTH;
+        }
+    }
+    
+// ######## row stripes for parallel rendering
+    // stripes smaller than this are not worth a task
+    static final int MIN_STRIPE_PIXELS = 1 << 16;
+    
+    static private ExecutorService renderPool;
+    
+    static synchronized private ExecutorService renderPool() {
+        if (renderPool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            renderPool = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "flowig-render-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return renderPool;
+    }
+    
+    static public int stripeCount(final int rows, final int cols, final int threads) {
+        final long pixels = (long) rows * cols;
+        return (int) Math.max(1, Math.min(Math.min(threads, rows), pixels / MIN_STRIPE_PIXELS));
+    }
+    
+    @FunctionalInterface
+    public interface StripeTask {
+        void run(int stripe, int y0, int y1);
+    }
+    
+    // splits [0, rows) into stripes; all but the last run on the shared render
+    // pool, the last one on the calling thread, which then waits for the rest
+    static public void forEachStripe(final int rows, final int stripes, StripeTask task) {
+        if (stripes <= 1) {
+            task.run(0, 0, rows);
+            return;
+        }
+        final ArrayList<Future<?>> futures = new ArrayList<>(stripes - 1);
+        for (int s = 0; s < stripes - 1; ++s) {
+            final int stripe = s;
+            futures.add(renderPool().submit(() -> task.run(stripe,
+                    rows * stripe / stripes, rows * (stripe + 1) / stripes)));
+        }
+        task.run(stripes - 1, rows * (stripes - 1) / stripes, rows);
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+    
+// ######## flow colorization through lookup tables
+    // Colors are looked up from tables sampled over the normalized flow
+    // vector instead of calling computeColor per pixel. Rows are processed
+    // from primitive buffers, nothing is allocated per pixel.
+    static public class FlowColorizer {
+        // table nodes per axis over [-1, 1]; odd, so zero motion is a node
+        static final int LUT_SIZE = 513;
+        static final float LUT_SCALE = (LUT_SIZE - 1) / 2f;
+        // packed r | g << 8 | b << 16 of computeColor for vectors inside the
+        // unit circle (IN) and for directions of vectors outside of it (OUT)
+        static final int[] IN = new int[LUT_SIZE * LUT_SIZE];
+        static final int[] OUT = new int[LUT_SIZE * LUT_SIZE];
+        static {
+            for (int j = 0; j < LUT_SIZE; ++j) {
+                final float fy = j / LUT_SCALE - 1;
+                for (int i = 0; i < LUT_SIZE; ++i) {
+                    final float fx = i / LUT_SCALE - 1;
+                    final float rad = (float) Math.sqrt(fx * fx + fy * fy);
+                    final float a = (float) (Math.atan2(-fy, -fx) / Math.PI);
+                    IN[j * LUT_SIZE + i] = pack(computeColorRad(Math.min(rad, 1), a));
+                    OUT[j * LUT_SIZE + i] = pack(computeColorRad(2, a));
+                }
+            }
+        }
+        
+        static private int pack(final Color c) {
+            return c.r | c.g << 8 | c.b << 16;
+        }
+        
+        static private int node(final float f) {
+            final int i = (int) ((f + 1) * LUT_SCALE + 0.5f);
+            return i < 0 ? 0 : (i >= LUT_SIZE ? LUT_SIZE - 1 : i);
+        }
+        
+        // the hue wraps around where fy changes sign (for fx > 0), negative
+        // fy must never be looked up from the fy = 0 row
+        static private int row(final float fy) {
+            final int j = node(fy);
+            return (j == LUT_SIZE / 2 && Float.floatToRawIntBits(fy) < 0) ? j - 1 : j;
+        }
+        
+        // squared length of the longest valid vector in rows [y0, y1)
+        static public float maxRadius2(final Mat flow, final int y0, final int y1) {
+            final int cols = flow.cols();
+            final FloatPointer in = new FloatPointer(flow.data());
+            final long inStep = flow.step() / Float.BYTES;
+            final float[] rowIn = new float[cols * 2];
+            float max = 0;
+            for (int y = y0; y < y1; ++y) {
+                in.position(y * inStep).get(rowIn);
+                max = Math.max(max, maxRadius2(rowIn, cols));
+            }
+            return max;
+        }
+        
+        // magnitude histogram of rows [y0, y1)
+        static public void histogram(final Mat flow, final int y0, final int y1, final long[] hist) {
+            final int cols = flow.cols();
+            final FloatPointer in = new FloatPointer(flow.data());
+            final long inStep = flow.step() / Float.BYTES;
+            final float[] rowIn = new float[cols * 2];
+            for (int y = y0; y < y1; ++y) {
+                in.position(y * inStep).get(rowIn);
+                histogramRow(rowIn, cols, hist);
+            }
+        }
+        
+        static public void histogramRow(final float[] row, final int cols, final long[] hist) {
+            for (int x = 0; x < cols; ++x) {
+                final float ux = row[2 * x];
+                final float uy = row[2 * x + 1];
+                if (isFlowCorrect(ux, uy)) {
+                    ++hist[MotionRange.bin((float) Math.sqrt(ux * ux + uy * uy))];
+                }
+            }
+        }
+        
+        // colorizes rows [y0, y1) of a CV_32FC2 flow into a CV_8UC3 image,
+        // adding every row to hist (if given) while it is in the row buffer
+        static public void colorize(final Mat flow, final Mat dst, final int y0, final int y1,
+                final float scale, boolean doX, boolean doY, final int scaleColor,
+                final long[] hist) {
+            final int cols = flow.cols();
+            final FloatPointer in = new FloatPointer(flow.data());
+            final BytePointer out = dst.data();
+            final long inStep = flow.step() / Float.BYTES;
+            final long outStep = dst.step();
+            final float[] rowIn = new float[cols * 2];
+            final byte[] rowOut = new byte[cols * 3];
+            for (int y = y0; y < y1; ++y) {
+                in.position(y * inStep).get(rowIn);
+                colorizeRow(rowIn, rowOut, cols, scale, doX, doY, scaleColor);
+                if (hist != null)
+                    histogramRow(rowIn, cols, hist);
+                out.position(y * outStep).put(rowOut);
+            }
+        }
+        
+        // squared length of the longest valid vector in an interleaved row
+        static public float maxRadius2(final float[] row, final int cols) {
+            float max = 0;
+            for (int x = 0; x < cols; ++x) {
+                final float ux = row[2 * x];
+                final float uy = row[2 * x + 1];
+                if (!isFlowCorrect(ux, uy)) {
+                    continue;
+                }
+                max = Math.max(max, ux * ux + uy * uy);
+            }
+            return max;
+        }
+        
+        // interleaved ux, uy in; packed 3 byte pixels out, invalid vectors black
+        static public void colorizeRow(final float[] row, final byte[] dst, final int cols,
+                final float scale, boolean doX, boolean doY, final int scaleColor) {
+            for (int x = 0; x < cols; ++x) {
+                final float ux = row[2 * x];
+                final float uy = row[2 * x + 1];
+                int c = 0;
+                if (isFlowCorrect(ux, uy)) {
+                    final float fx = doX ? ux * scale : 0;
+                    final float fy = doY ? uy * scale : 0;
+                    final float rad2 = fx * fx + fy * fy;
+                    if (rad2 <= 1) {
+                        c = IN[row(fy) * LUT_SIZE + node(fx)];
+                    } else {
+                        final float norm = 1 / (float) Math.sqrt(rad2);
+                        c = OUT[row(fy * norm) * LUT_SIZE + node(fx * norm)];
+                    }
+                }
+                if (scaleColor == 1) {
+                    dst[3 * x] = (byte) c;
+                    dst[3 * x + 1] = (byte) (c >> 8);
+                    dst[3 * x + 2] = (byte) (c >> 16);
+                } else {
+                    dst[3 * x] = (byte) ((c & 0xff) * scaleColor);
+                    dst[3 * x + 1] = (byte) ((c >> 8 & 0xff) * scaleColor);
+                    dst[3 * x + 2] = (byte) ((c >> 16 & 0xff) * scaleColor);
+                }
+            }
+        }
+    }
+
+//############################################################################    
+//############################################################################
+// flow export
+//############################################################################
+//############################################################################
+// ######## Middlebury .flo files, written on a background thread
+    // A .flo file is the tag 202021.25f, width and height as 32 bit ints,
+    // then the interleaved ux, uy floats row by row, all little endian.
+    static public class FlowExporter implements AutoCloseable {
+        static final float TAG = 202021.25f;
+        // flows queued for writing at most
+        static final int QUEUE = 8;
+        
+        private final File dir;
+        private final ExecutorService writer;
+        private final Semaphore slots = new Semaphore(QUEUE);
+        private volatile IOException error = null;
+        private final Stats stats;
+        
+        public FlowExporter(final File dir) throws IOException {
+            this(dir, null);
+        }
+        
+        // writing time and bytes written are added to stats (if given)
+        public FlowExporter(final File dir, final Stats stats) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("cannot create " + dir);
+            this.dir = dir;
+            this.stats = stats;
+            this.writer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "flowig-export");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        
+        static public String fileName(final int index) {
+            return String.format("flow_%06d.flo", index);
+        }
+        
+        // queues the flow for writing, blocks while the queue is full; the
+        // flow is released once written and must not be used by the caller
+        // afterwards
+        public void export(final int index, final Mat flow) {
+            if (error != null) {
+                flow.release();
+                return;
+            }
+            slots.acquireUninterruptibly();
+            writer.execute(() -> {
+                try {
+                    final long t = System.nanoTime();
+                    final File file = new File(dir, fileName(index));
+                    writeFlo(file, flow);
+                    Stats.lap(stats, Stage.Write, t);
+                    Stats.count(stats, Counter.BytesWritten, file.length());
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    flow.release();
+                    slots.release();
+                }
+            });
+        }
+        
+        // queues a rendered flow image, written as flow_NNNNNN.<format>
+        public void exportImage(final int index, final ImagePlus img, final String format) {
+            if (error != null)
+                return;
+            slots.acquireUninterruptibly();
+            writer.execute(() -> {
+                try {
+                    final long t = System.nanoTime();
+                    final File file = new File(dir, String.format("flow_%06d.%s", index, format));
+                    writeImage(img, format, file);
+                    Stats.lap(stats, Stage.Write, t);
+                    Stats.count(stats, Counter.BytesWritten, file.length());
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+        
+        // FileSaver does not need (or open) any window
+        static public void writeImage(final ImagePlus img, final String format,
+                final File file) throws IOException {
+            final FileSaver saver = new FileSaver(img);
+            final boolean ok;
+            switch (format) {
+                case "png":
+                    ok = saver.saveAsPng(file.getPath());
+                    break;
+                case "tif":
+                case "tiff":
+                    ok = saver.saveAsTiff(file.getPath());
+                    break;
+                case "jpg":
+                case "jpeg":
+                    ok = saver.saveAsJpeg(file.getPath());
+                    break;
+                default:
+                    throw new IOException("unknown format " + format);
+            }
+            if (!ok)
+                throw new IOException("cannot write " + file);
+        }
+        
+        // waits for all queued flows, rethrows the first write error
+        @Override
+        public void close() throws IOException {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null)
+                throw error;
+        }
+        
+        // the native flow data is handed to the channel as a direct buffer,
+        // nothing is copied or converted in java
+        static public void writeFlo(final File file, final Mat flow) throws IOException {
+            if (flow.type() != opencv_core.CV_32FC2)
+                throw new IOException("not a CV_32FC2 flow field");
+            final Mat data = flow.isContinuous() ? flow : flow.clone();
+            final ByteBuffer header = ByteBuffer.allocateDirect(12).order(ByteOrder.LITTLE_ENDIAN);
+            header.putFloat(TAG).putInt(data.cols()).putInt(data.rows()).flip();
+            final long size = (long) data.rows() * data.cols() * 2 * Float.BYTES;
+            final ByteBuffer body = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+                    ? new BytePointer(data.data()).capacity(size).asByteBuffer()
+                    : littleEndianCopy(data, size);
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                final ByteBuffer[] buffers = {header, body};
+                while (body.hasRemaining()) {
+                    channel.write(buffers);
+                }
+            } finally {
+                if (data != flow)
+                    data.release();
+            }
+        }
+        
+        // big endian hosts only
+        static private ByteBuffer littleEndianCopy(final Mat data, final long size) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            final float[] values = new float[(int) (size / Float.BYTES)];
+            new FloatPointer(data.data()).get(values);
+            buffer.asFloatBuffer().put(values);
+            return buffer;
+        }
+    }
+    
+// ######## memory mapped store for the flow of long sequences
+    // The flow fields are appended to chunk files of about CHUNK_SIZE bytes
+    // (a field never spans two chunks), an index file holds the location
+    // and size of every field. Readers map a single field at a time and
+    // wrap it in a Mat header, nothing is copied onto the java heap and
+    // resident memory is bounded by the fields currently mapped. Fields are
+    // stored in native byte order.
+    static public class FlowStore implements AutoCloseable {
+        static final long CHUNK_SIZE = 1L << 30;
+        static final String INDEX = "index";
+        static final int MAGIC = 0x464c5753; // FLWS
+        static final int HEADER = 8;
+        // long offset, int chunk, int rows, int cols
+        static final int ENTRY = 20;
+        
+        private final File dir;
+        private final ArrayList<FileChannel> chunks = new ArrayList<>();
+        private final ByteBuffer index;
+        private final int size;
+        
+        public FlowStore(final File dir) throws IOException {
+            this.dir = dir;
+            try (FileChannel channel = FileChannel.open(new File(dir, INDEX).toPath(),
+                    StandardOpenOption.READ)) {
+                index = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+                while (index.hasRemaining() && channel.read(index) >= 0) {
+                }
+            }
+            if (index.capacity() < HEADER || index.getInt(0) != MAGIC)
+                throw new IOException("not a flow store: " + dir);
+            // an entry is only written after its data, partial entries are ignored
+            size = (index.capacity() - HEADER) / ENTRY;
+        }
+        
+        static private File chunkFile(final File dir, final int chunk) {
+            return new File(dir, String.format("chunk_%05d.dat", chunk));
+        }
+        
+        public int size() {
+            return size;
+        }
+        
+        // maps the flow of pair i; the Mat is valid as long as the returned
+        // MappedFlow is reachable
+        public synchronized MappedFlow map(final int i) throws IOException {
+            if (i < 0 || i >= size)
+                throw new IndexOutOfBoundsException("pair " + i + " of " + size);
+            final int entry = HEADER + i * ENTRY;
+            final long offset = index.getLong(entry);
+            final int chunk = index.getInt(entry + 8);
+            final int rows = index.getInt(entry + 12);
+            final int cols = index.getInt(entry + 16);
+            while (chunks.size() <= chunk) {
+                chunks.add(null);
+            }
+            FileChannel channel = chunks.get(chunk);
+            if (channel == null) {
+                channel = FileChannel.open(chunkFile(dir, chunk).toPath(), StandardOpenOption.READ);
+                chunks.set(chunk, channel);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    offset, (long) rows * cols * 2 * Float.BYTES);
+            return new MappedFlow(buffer, rows, cols);
+        }
+        
+        @Override
+        public synchronized void close() throws IOException {
+            for (final FileChannel channel : chunks) {
+                if (channel != null)
+                    channel.close();
+            }
+            chunks.clear();
+        }
+        
+        // a mapped CV_32FC2 field, the mapping is released by the garbage
+        // collector once this is no longer reachable
+        static public class MappedFlow {
+            public final Mat flow;
+            private final MappedByteBuffer buffer;
+            
+            MappedFlow(final MappedByteBuffer buffer, final int rows, final int cols) {
+                this.buffer = buffer;
+                this.flow = new Mat(rows, cols, opencv_core.CV_32FC2, new BytePointer(buffer));
+            }
+        }
+        
+// ######## appends flow fields in pair order
+        static public class Writer implements AutoCloseable {
+            private final File dir;
+            private final long chunkSize;
+            private final FileChannel index;
+            private FileChannel chunk = null;
+            private int chunkId = -1;
+            private final ByteBuffer entry = ByteBuffer.allocateDirect(ENTRY).order(ByteOrder.LITTLE_ENDIAN);
+            
+            public Writer(final File dir) throws IOException {
+                this(dir, CHUNK_SIZE);
+            }
+            
+            // starts a new store, an existing one in dir is replaced
+            public Writer(final File dir, final long chunkSize) throws IOException {
+                if (!dir.isDirectory() && !dir.mkdirs())
+                    throw new IOException("cannot create " + dir);
+                this.dir = dir;
+                this.chunkSize = chunkSize;
+                for (int i = 0; chunkFile(dir, i).delete(); ++i) {
+                }
+                index = FileChannel.open(new File(dir, INDEX).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                final ByteBuffer header = ByteBuffer.allocateDirect(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(ENTRY).flip();
+                writeFully(index, header);
+            }
+            
+            // the next pair's flow; the native data is written directly
+            public synchronized void append(final Mat flow) {
+                try {
+                    if (flow.type() != opencv_core.CV_32FC2)
+                        throw new IOException("not a CV_32FC2 flow field");
+                    final Mat data = flow.isContinuous() ? flow : flow.clone();
+                    final long size = (long) data.rows() * data.cols() * 2 * Float.BYTES;
+                    if (chunk == null || (chunk.position() > 0 && chunk.position() + size > chunkSize)) {
+                        if (chunk != null)
+                            chunk.close();
+                        chunk = FileChannel.open(chunkFile(dir, ++chunkId).toPath(),
+                                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+                    }
+                    final long offset = chunk.position();
+                    writeFully(chunk, new BytePointer(data.data()).capacity(size).asByteBuffer());
+                    entry.clear();
+                    entry.putLong(offset).putInt(chunkId).putInt(data.rows()).putInt(data.cols()).flip();
+                    writeFully(index, entry);
+                    if (data != flow)
+                        data.release();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            
+            @Override
+            public synchronized void close() throws IOException {
+                if (chunk != null)
+                    chunk.close();
+                index.close();
+            }
+            
+            static private void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+    
+//############################################################################    
+//############################################################################
+// frame source
+//############################################################################
+//############################################################################
+// ######## sorted list of all files in a directory
+    static public ArrayList<String> listFrames(final String dataDir) {
+        ArrayList<String> paths = new ArrayList<>();
+        File[] directoryListing = new File(dataDir).listFiles();
+        if (directoryListing != null) {
+            for (File child : directoryListing) {
+                if (child.isDirectory()) {
+                    continue;
+                }
+                paths.add(child.getAbsolutePath());
+            }
+            Collections.sort(paths, String::compareTo);
         }
-        Mat matFlow = new Mat();
-        flow.calc(mat0, mat1, matFlow);
-        return matFlow;
+        return paths;
     }
     
-// ######## flow vector validation
-    static public boolean isFlowCorrect(float ux, float uy) {
-        return (   !Float.isNaN(ux)
-                && !Float.isNaN(uy)
-                && Math.abs(ux) < 1e9
-                && Math.abs(uy) < 1e9);
-    }
-
-// ######## flow visualization colors (as color wheel)
-    static final int RY = 15;
-    static final int YG = 6;
-    static final int GC = 4;
-    static final int CB = 11;
-    static final int BM = 13;
-    static final int MR = 6;
-    static final int NCOLS = RY + YG + GC + CB + BM + MR;
-    static final Color[] COLORWHEEL = new Color[NCOLS];
-    static {
-        int k = 0;
-        for (int i = 0; i < RY; ++i, ++k) {
-            COLORWHEEL[k] = new Color(255, 255 * i / RY, 0);
+// ######## streams frames from disk, decoding a bounded number ahead
+    static public class FrameSource implements Iterable<ImagePlus> {
+        private final List<String> paths;
+        private final int prefetch;
+        private final Stats stats;
+        
+        public FrameSource(final List<String> paths, final int prefetch) {
+            this(paths, prefetch, null);
         }
-        for (int i = 0; i < YG; ++i, ++k) {
-            COLORWHEEL[k] = new Color(255 - 255 * i / YG, 255, 0);
+        
+        // decoding time and bytes read are added to stats (if given)
+        public FrameSource(final List<String> paths, final int prefetch, final Stats stats) {
+            this.paths = paths;
+            this.prefetch = Math.max(1, prefetch);
+            this.stats = stats;
         }
-        for (int i = 0; i < GC; ++i, ++k) {
-            COLORWHEEL[k] = new Color(0, 255, 255 * i / GC);
+        
+        public int size() {
+            return paths.size();
         }
-        for (int i = 0; i < CB; ++i, ++k) {
-            COLORWHEEL[k] = new Color(0, 255 - 255 * i / CB, 255);
+        
+        // every call starts a new pass over the sequence
+        @Override
+        public Prefetcher<ImagePlus> iterator() {
+            return new Prefetcher<>(FrameSource::decode);
         }
-        for (int i = 0; i < BM; ++i, ++k) {
-            COLORWHEEL[k] = new Color(255 * i / BM, 0, 255);
+        
+        // null for files ImageJ cannot open
+        static public ImagePlus decode(final String path) {
+            final ImagePlus img = new ImagePlus(path);
+            return img.getProcessor() != null ? img : null;
         }
-        for (int i = 0; i < MR; ++i, ++k) {
-            COLORWHEEL[k] = new Color(255, 0, 255 - 255 * i / MR);
+        
+        // a pass decoding to 8 bit gray Mats, for the flow path
+        public Prefetcher<Mat> grayIterator() {
+            return new Prefetcher<>(FrameSource::decodeGray);
+        }
+        
+        // Decoded from a memory mapped file, at a third of the memory and
+        // time of an RGB ImagePlus. Deeper images (e.g. 12 bit microscopy
+        // data in 16 bit TIFFs) are stretched from their own min..max to
+        // 8 bit, as their ImagePlus is. Formats OpenCV cannot read (e.g.
+        // GIF) go through ImagePlus; null if ImageJ cannot open it either.
+        static public Mat decodeGray(final String path) {
+            try (FileChannel channel = FileChannel.open(new File(path).toPath(),
+                    StandardOpenOption.READ)) {
+                final MappedByteBuffer bytes = channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                final Mat encoded = new Mat(1, bytes.capacity(), opencv_core.CV_8UC1,
+                        new BytePointer(bytes));
+                final Mat gray = opencv_imgcodecs.imdecode(encoded,
+                        opencv_imgcodecs.IMREAD_GRAYSCALE | opencv_imgcodecs.IMREAD_ANYDEPTH);
+                encoded.close();
+                if (!gray.empty())
+                    return to8Bit(gray);
+            } catch (IOException e) {
+                // left to ImagePlus
+            }
+            final ImagePlus img = decode(path);
+            if (img == null)
+                return null;
+            try {
+                final Mat mat = toMat(img);
+                toGray(mat);
+                return to8Bit(mat);
+            } catch (RuntimeException e) {
+                // opened, but not as an image (e.g. a text file)
+                return null;
+            }
+        }
+        
+        // stretched from min..max
+        static private Mat to8Bit(final Mat gray) {
+            if (gray.depth() == opencv_core.CV_8U)
+                return gray;
+            final Mat bytes = new Mat();
+            opencv_core.normalize(gray, bytes, 0, 255, opencv_core.NORM_MINMAX,
+                    opencv_core.CV_8U, new Mat());
+            gray.release();
+            return bytes;
+        }
+        
+        // a decoded frame, or why it could not be decoded
+        static private class Decoded<T> {
+            final T frame;
+            final RuntimeException error;
+            
+            Decoded(final T frame, final RuntimeException error) {
+                this.frame = frame;
+                this.error = error;
+            }
+        }
+        
+        // A frame that fails to decode (or is not an image, decode returns
+        // null) ends the pass: its error is thrown from next() in its place.
+        public class Prefetcher<T> implements Iterator<T>, AutoCloseable {
+            private final BlockingQueue<Decoded<T>> queue
+                    = new ArrayBlockingQueue<>(prefetch);
+            private final Thread loader;
+            private int taken = 0;
+            
+            private Prefetcher(final Function<String, T> decode) {
+                loader = new Thread(() -> {
+                    Decoded<T> decoded = null;
+                    try {
+                        for (final String path : paths) {
+                            final long t = System.nanoTime();
+                            decoded = decode(decode, path);
+                            Stats.lap(stats, Stage.Decode, t);
+                            Stats.count(stats, Counter.BytesRead, new File(path).length());
+                            queue.put(decoded);
+                            if (decoded.error != null)
+                                return;
+                            decoded = null;
+                        }
+                    } catch (InterruptedException e) {
+                        // closed before the end of the sequence, the frame
+                        // that found the queue full is not taken any more
+                        if (decoded != null)
+                            release(decoded.frame);
+                    }
+                }, "flowig-prefetch");
+                loader.setDaemon(true);
+                loader.start();
+            }
+            
+            @Override
+            public boolean hasNext() {
+                return taken < paths.size();
+            }
+            
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Decoded<T> decoded;
+                try {
+                    decoded = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new NoSuchElementException("interrupted");
+                }
+                if (decoded.error != null) {
+                    // nothing follows a failed frame
+                    taken = paths.size();
+                    throw decoded.error;
+                }
+                ++taken;
+                return decoded.frame;
+            }
+            
+            // stops loading and waits for the loader (it may be decoding a
+            // frame), then releases the frames decoded ahead
+            @Override
+            public void close() {
+                loader.interrupt();
+                boolean interrupted = false;
+                while (loader.isAlive()) {
+                    try {
+                        loader.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                final ArrayList<Decoded<T>> left = new ArrayList<>();
+                queue.drainTo(left);
+                for (final Decoded<T> decoded : left) {
+                    release(decoded.frame);
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+        
+        // native memory of a decoded frame, an ImagePlus is left to the GC
+        static private void release(final Object frame) {
+            if (frame instanceof Mat)
+                ((Mat) frame).release();
+        }
+        
+        static private <T> Decoded<T> decode(final Function<String, T> decode,
+                final String path) {
+            try {
+                final T frame = decode.apply(path);
+                if (frame == null)
+                    return new Decoded<>(null,
+                            new IllegalArgumentException("Not a readable image: " + path));
+                return new Decoded<>(frame, null);
+            } catch (RuntimeException e) {
+                return new Decoded<>(null,
+                        new IllegalArgumentException("Decoding " + path + " failed", e));
+            }
         }
     }
     
-// ######## visualize flow vector as color
-    static public Color computeColor(float fx, float fy) {
-        return computeColor(fx, fy, true, true);
-    }
-    
-    static public Color computeColor(float fx, float fy, boolean doX, boolean doY) {
-        if (!doX) fx = 0;
-        if (!doY) fy = 0;
-        final float rad = (float) (Math.sqrt(fx * fx + fy * fy));
-        final float a = (float) (Math.atan2(-fy, -fx) / Math.PI);
-        return computeColorRad(rad, a);
+//############################################################################
+//############################################################################
+// Motion of the marker
+//############################################################################
+//############################################################################
+    // displacement of the marker center between two frames, null unless it
+    // is found in both
+    static public Vector markerMotion(final Rectangle bounds0, final Rectangle bounds1) {
+        if (bounds0 == null || bounds0.isEmpty() || bounds1 == null || bounds1.isEmpty())
+            return null;
+        return new Vector(bounds1.getCenterX() - bounds0.getCenterX(),
+                bounds1.getCenterY() - bounds0.getCenterY());
     }
     
-    static public Color computeColorRad(final float rad, final float a) {
-        final float fk = (a + 1.0f) / 2.0f * (NCOLS - 1);
-        final int k0 = (int) fk;
-        final int k1 = (k0 + 1) % NCOLS;
-        final float f = fk - k0;
-
-        Color pix = new Color();
-
-        for (int b = 0; b < 3; b++) {
-            final float col0 = COLORWHEEL[k0].get(b) / 255.f;
-            final float col1 = COLORWHEEL[k1].get(b) / 255.f;
-
-            float col = (1 - f) * col0 + f * col1;
-
-            if (rad <= 1) {
-                col = 1 - rad * (1 - col);  // increase saturation with radius
-            } else {
-                col *= .75f; // out of range
-            }
-            pix.set(2 - b, (int) (255.f * col));
+// ######## flow statistics of a region, vectors in input pixels
+    static public class RegionMotion {
+        public final double meanX;
+        public final double meanY;
+        // binned approximations, see FlowIntegral
+        public final double medianX;
+        public final double medianY;
+        // mean length of the vectors
+        public final double magnitude;
+        // degrees from +x towards +y (image coordinates) of the direction bin
+        // holding the largest share of the magnitudes, NaN without motion
+        public final double direction;
+        // valid vectors in the region
+        public final long count;
+        
+        public RegionMotion(final double meanX, final double meanY, final double medianX,
+                final double medianY, final double magnitude, final double direction,
+                final long count) {
+            this.meanX = meanX;
+            this.meanY = meanY;
+            this.medianX = medianX;
+            this.medianY = medianY;
+            this.magnitude = magnitude;
+            this.direction = direction;
+            this.count = count;
         }
-
-        return pix;
-    }
-    
         
-// ######## draw flow vector legend
-    public ImagePlus getFlowLegend(final int w, final int h, final float maxmotion, boolean doX, boolean doY) {
-        ImagePlus legend = toImagePlus(drawFlowLegend(w, h, maxmotion, doX, doY), "legend");
-        Overlay o = new Overlay();
-        legend.setOverlay(o);
-        OvalRoi circleRoi = new OvalRoi(0, 0, w, h);
-        circleRoi.setStrokeColor(java.awt.Color.black);
-        o.add(circleRoi);
-        Line xAxis = new Line(0, h/2, w, h/2);
-        xAxis.setStrokeColor(java.awt.Color.black);
-        o.add(xAxis);
-        Line yAxis = new Line(w/2, 0, w/2, h);
-        yAxis.setStrokeColor(java.awt.Color.black);
-        o.add(yAxis);
-        final int ticks = 10;
-        final float tickStepX = w / (float)ticks;
-        final float tickStepY = h / (float)ticks;
-        for (int i = 0; ticks > i; ++i) {
-            Line tickX = new Line(tickStepX*i, h/2-5, tickStepX*i, h/2+5);
-            tickX.setStrokeColor(java.awt.Color.black);
-            o.add(tickX);
-            Line tickY = new Line(w/2-5, tickStepY*i, w/2+5, tickStepY*i);
-            tickY.setStrokeColor(java.awt.Color.black);
-            o.add(tickY);
+        public RegionMotion scaled(final double factor) {
+            return new RegionMotion(meanX * factor, meanY * factor, medianX * factor,
+                    medianY * factor, magnitude * factor, direction, count);
         }
-        return legend;
     }
     
-    public Mat drawFlowLegend(final int w, final int h, final float maxmotion, boolean doX, boolean doY) {
-        final Vector size = new Vector(w,h);
-        final Vector center = size.divide(2);
+// ######## motion of the marker in one frame or pair
+    static public class MotionRecord {
+        static public final String CSV_HEADER = "pair,x,y,width,height,markerX,markerY,"
+                + "meanX,meanY,medianX,medianY,magnitude,direction,count";
         
-        Mat leg = new Mat(h, w, opencv_core.CV_8UC3);
-        UByteRawIndexer idxOut = leg.createIndexer(true);
-        for (int x = 0; size.x > x; ++x) {
-            for (int y = 0; size.y > y; ++y) {
-                final Vector pos = (new Vector(x,y)).minus(center);
-                final Color color = computeColor((float)(pos.x/maxmotion), (float)(pos.y/maxmotion), doX, doY);
-                idxOut.put(y, x * 3, color.r*scaleColor);
-                idxOut.put(y, x * 3 + 1, color.g*scaleColor);
-                idxOut.put(y, x * 3 + 2, color.b*scaleColor);
-            }
+        public final int index;
+        // marker in the first frame, null if not searched for
+        public final Rectangle bounds;
+        // displacement of the marker center, null unless found in both frames
+        public final Vector marker;
+        // flow statistics inside bounds, null without flow or marker
+        public final RegionMotion flow;
+        
+        public MotionRecord(final int index, final Rectangle bounds, final Vector marker,
+                final RegionMotion flow) {
+            this.index = index;
+            this.bounds = bounds;
+            this.marker = marker;
+            this.flow = flow;
         }
         
-        return leg;
+        // empty fields for missing values
+        public String toCsv() {
+            final StringBuilder sb = new StringBuilder().append(index);
+            if (bounds != null)
+                sb.append(',').append(bounds.x).append(',').append(bounds.y)
+                        .append(',').append(bounds.width).append(',').append(bounds.height);
+            else
+                sb.append(",,,,");
+            if (marker != null)
+                sb.append(String.format(Locale.ROOT, ",%.3f,%.3f", marker.x, marker.y));
+            else
+                sb.append(",,");
+            if (flow != null)
+                sb.append(String.format(Locale.ROOT, ",%.3f,%.3f,%.3f,%.3f,%.3f,%.1f,%d",
+                        flow.meanX, flow.meanY, flow.medianX, flow.medianY,
+                        flow.magnitude, flow.direction, flow.count));
+            else
+                sb.append(",,,,,,,");
+            return sb.toString();
+        }
+        
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder().append(index).append(':');
+            if (marker != null)
+                sb.append(String.format(Locale.ROOT, " marker (%.2f, %.2f) velocity %.2f",
+                        marker.x, marker.y, marker.length()));
+            if (flow != null)
+                sb.append(String.format(Locale.ROOT,
+                        " flow mean (%.2f, %.2f) median (%.2f, %.2f) magnitude %.2f direction %.0f",
+                        flow.meanX, flow.meanY, flow.medianX, flow.medianY,
+                        flow.magnitude, flow.direction));
+            return sb.toString();
+        }
     }
     
-// ######## visualize entire flow field with colors
-    public Mat drawOpticalFlow(final Mat flow) {
-        return drawOpticalFlow(flow, -1, true, true);
-    }
-    public Mat drawOpticalFlow(final Mat flow, final float maxmotion, boolean doX, boolean doY) {
-//        ImageProcessor ip = new ColorProcessor(flow.cols(), flow.rows());
-//        ImagePlus imp = new ImagePlus("flow", ip);
-        Mat dst = new Mat(flow.size(), opencv_core.CV_8UC3);
-
-        // determine motion range:
-        float maxrad = maxmotion;
-        FloatIndexer idx = flow.createIndexer();
-        if (maxmotion <= 0) {
-            maxrad = 1;
-            for (int y = 0; y < flow.rows(); ++y) {
-                for (int x = 0; x < flow.cols(); ++x) {
-                    final float ux = idx.get(y, x * 2);
-                    final float uy = idx.get(y, x * 2 + 1);
-
-                    if (!isFlowCorrect(ux, uy)) {
-                        continue;
+// ######## region statistics of a flow field through integral images
+    // Any number of rectangles inside the covered area (all of the field or
+    // a part of it) is queried in O(1) each. Count, sums of ux, uy and
+    // magnitude of the valid vectors are integrated per pixel. Histograms of
+    // ux and uy (for the medians) and of the directions (weighted by
+    // magnitude) are integrated per CELL x CELL block from the corner of the
+    // area, those are taken over the query grown to whole blocks. Means and
+    // magnitude are exact (double sums), medians are a binned approximation:
+    // interpolated inside bins of 1/MEDIAN_BINS of the value range over the
+    // whole area, not of the queried rectangle.
+    static public class FlowIntegral {
+        static final int CELL = 4;
+        static final int DIRECTIONS = 16;
+        // over [min, max] of each component in the area
+        static final int MEDIAN_BINS = 64;
+        
+        // covered area in field coordinates
+        public final Rectangle area;
+        private final int cols;
+        private final int rows;
+        private final int[] count;
+        private final double[] sumX;
+        private final double[] sumY;
+        private final double[] sumMag;
+        private final int cellCols;
+        private final int cellRows;
+        private final int[] histX;
+        private final int[] histY;
+        private final double[] dirs;
+        private float minX = Float.MAX_VALUE;
+        private float minY = Float.MAX_VALUE;
+        private float binX = 0;
+        private float binY = 0;
+        
+        public FlowIntegral(final Mat flow) {
+            this(flow, null);
+        }
+        
+        // tables over region of the field only (all of it if null)
+        public FlowIntegral(final Mat flow, final Rectangle region) {
+            final Rectangle field = new Rectangle(0, 0, flow.cols(), flow.rows());
+            area = region != null ? region.intersection(field) : field;
+            if (area.isEmpty())
+                area.setBounds(0, 0, 0, 0);
+            cols = area.width;
+            rows = area.height;
+            cellCols = (cols + CELL - 1) / CELL;
+            cellRows = (rows + CELL - 1) / CELL;
+            final int size = (cols + 1) * (rows + 1);
+            final int cells = (cellCols + 1) * (cellRows + 1);
+            count = new int[size];
+            sumX = new double[size];
+            sumY = new double[size];
+            sumMag = new double[size];
+            histX = new int[cells * MEDIAN_BINS];
+            histY = new int[cells * MEDIAN_BINS];
+            dirs = new double[cells * DIRECTIONS];
+            
+            final FloatPointer in = new FloatPointer(flow.data());
+            final long inStep = flow.step() / Float.BYTES;
+            final long inX = 2L * area.x;
+            final float[] row = new float[cols * 2];
+            // bin ranges first
+            float maxX = -Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            for (int y = 0; y < rows; ++y) {
+                in.position((area.y + y) * inStep + inX).get(row);
+                for (int x = 0; x < cols; ++x) {
+                    final float ux = row[2 * x];
+                    final float uy = row[2 * x + 1];
+                    if (isFlowCorrect(ux, uy)) {
+                        minX = Math.min(minX, ux);
+                        maxX = Math.max(maxX, ux);
+                        minY = Math.min(minY, uy);
+                        maxY = Math.max(maxY, uy);
                     }
-
-                    maxrad = (float) Math.max(maxrad, Math.sqrt(ux * ux + uy * uy));
+                }
+            }
+            binX = Math.max(0, maxX - minX) / MEDIAN_BINS;
+            binY = Math.max(0, maxY - minY) / MEDIAN_BINS;
+            final float perBinX = binX > 0 ? 1 / binX : 0;
+            final float perBinY = binY > 0 ? 1 / binY : 0;
+            
+            // raw counts of the current row of blocks
+            final int[] cellX = new int[cellCols * MEDIAN_BINS];
+            final int[] cellY = new int[cellCols * MEDIAN_BINS];
+            final double[] cellDirs = new double[cellCols * DIRECTIONS];
+            for (int y = 0; y < rows; ++y) {
+                in.position((area.y + y) * inStep + inX).get(row);
+                int n = 0;
+                double sx = 0;
+                double sy = 0;
+                double sm = 0;
+                final int above = y * (cols + 1);
+                final int line = above + cols + 1;
+                for (int x = 0; x < cols; ++x) {
+                    final float ux = row[2 * x];
+                    final float uy = row[2 * x + 1];
+                    if (isFlowCorrect(ux, uy)) {
+                        final double mag = Math.sqrt(ux * ux + uy * uy);
+                        ++n;
+                        sx += ux;
+                        sy += uy;
+                        sm += mag;
+                        final int c = x / CELL;
+                        ++cellX[c * MEDIAN_BINS + bin(ux, minX, perBinX)];
+                        ++cellY[c * MEDIAN_BINS + bin(uy, minY, perBinY)];
+                        cellDirs[c * DIRECTIONS + direction(ux, uy)] += mag;
+                    }
+                    count[line + x + 1] = count[above + x + 1] + n;
+                    sumX[line + x + 1] = sumX[above + x + 1] + sx;
+                    sumY[line + x + 1] = sumY[above + x + 1] + sy;
+                    sumMag[line + x + 1] = sumMag[above + x + 1] + sm;
+                }
+                if (y % CELL == CELL - 1 || y == rows - 1) {
+                    final int cy = y / CELL;
+                    integrateCells(cellX, histX, cy, MEDIAN_BINS);
+                    integrateCells(cellY, histY, cy, MEDIAN_BINS);
+                    integrateCells(cellDirs, dirs, cy, DIRECTIONS);
+                    Arrays.fill(cellX, 0);
+                    Arrays.fill(cellY, 0);
+                    Arrays.fill(cellDirs, 0);
                 }
             }
         }
-
-        UByteRawIndexer idxOut = dst.createIndexer(true);
-        for (int y = 0; y < flow.rows(); ++y) {
-            for (int x = 0; x < flow.cols(); ++x) {
-                final float ux = idx.get(y, x * 2);
-                final float uy = idx.get(y, x * 2 + 1);
-
-                if (!isFlowCorrect(ux, uy)) {
-                    continue;
+        
+        static int bin(final float value, final float min, final float perBin) {
+            return Math.min((int) ((value - min) * perBin), MEDIAN_BINS - 1);
+        }
+        
+        // bin of atan2(uy, ux), through an approximation of atan good to
+        // 0.005 rad (Math.atan2 would take most of the build time)
+        static int direction(final float ux, final float uy) {
+            final float ax = Math.abs(ux);
+            final float ay = Math.abs(uy);
+            if (ax == 0 && ay == 0)
+                return 0;
+            final double z = ax >= ay ? ay / ax : ax / ay;
+            double angle = z * (Math.PI / 4 + 0.273 * (1 - z));
+            if (ay > ax)
+                angle = Math.PI / 2 - angle;
+            if (ux < 0)
+                angle = Math.PI - angle;
+            if (uy < 0)
+                angle = -angle;
+            final int d = (int) ((angle + Math.PI) / (2 * Math.PI) * DIRECTIONS);
+            return Math.min(d, DIRECTIONS - 1);
+        }
+        
+        private void integrateCells(final int[] cellRow, final int[] table, final int cy,
+                final int bins) {
+            final int[] sum = new int[bins];
+            final int above = cy * (cellCols + 1);
+            final int line = above + cellCols + 1;
+            for (int c = 0; c < cellCols; ++c) {
+                for (int b = 0; b < bins; ++b) {
+                    sum[b] += cellRow[c * bins + b];
+                    table[(line + c + 1) * bins + b] = table[(above + c + 1) * bins + b] + sum[b];
                 }
-                final Color c = computeColor(ux / maxrad, uy / maxrad, doX, doY);
-//                ip.set(x, y, (c.r * m) << 16 | (c.g * m) << 8 | (c.b * m));
-                idxOut.put(y, x * 3, c.r*scaleColor);
-                idxOut.put(y, x * 3 + 1, c.g*scaleColor);
-                idxOut.put(y, x * 3 + 2, c.b*scaleColor);
             }
         }
-        return dst;
+        
+        private void integrateCells(final double[] cellRow, final double[] table, final int cy,
+                final int bins) {
+            final double[] sum = new double[bins];
+            final int above = cy * (cellCols + 1);
+            final int line = above + cellCols + 1;
+            for (int c = 0; c < cellCols; ++c) {
+                for (int b = 0; b < bins; ++b) {
+                    sum[b] += cellRow[c * bins + b];
+                    table[(line + c + 1) * bins + b] = table[(above + c + 1) * bins + b] + sum[b];
+                }
+            }
+        }
+        
+        // sum over [x0, x1) x [y0, y1) of a table of stride + 1 columns
+        static private double sum(final double[] table, final int stride, final int bins,
+                final int b, final int x0, final int y0, final int x1, final int y1) {
+            return table[(y1 * stride + x1) * bins + b] - table[(y0 * stride + x1) * bins + b]
+                    - table[(y1 * stride + x0) * bins + b] + table[(y0 * stride + x0) * bins + b];
+        }
+        
+        static private long sum(final int[] table, final int stride, final int bins,
+                final int b, final int x0, final int y0, final int x1, final int y1) {
+            return (long) table[(y1 * stride + x1) * bins + b] - table[(y0 * stride + x1) * bins + b]
+                    - table[(y1 * stride + x0) * bins + b] + table[(y0 * stride + x0) * bins + b];
+        }
+        
+        // statistics inside bounds given at input resolution, for a field
+        // computed at 1 / 2^scaleSize of it; vectors in input pixels
+        public RegionMotion motion(final Rectangle bounds, final int scaleSize) {
+            final RegionMotion motion = query(toField(bounds, scaleSize));
+            return motion != null ? motion.scaled(1 << scaleSize) : null;
+        }
+        
+        // bounds at input resolution grown to whole pixels of a field
+        // computed at 1 / 2^scaleSize of it
+        static public Rectangle toField(final Rectangle bounds, final int scaleSize) {
+            final int x0 = bounds.x >> scaleSize;
+            final int y0 = bounds.y >> scaleSize;
+            final int x1 = (bounds.x + bounds.width + (1 << scaleSize) - 1) >> scaleSize;
+            final int y1 = (bounds.y + bounds.height + (1 << scaleSize) - 1) >> scaleSize;
+            return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        }
+        
+        // statistics inside region (field coordinates), clipped to the area,
+        // null if it holds no valid vector
+        public RegionMotion query(final Rectangle region) {
+            final Rectangle r = region.intersection(area);
+            if (r.isEmpty())
+                return null;
+            final int stride = cols + 1;
+            final int x0 = r.x - area.x;
+            final int y0 = r.y - area.y;
+            final int x1 = x0 + r.width;
+            final int y1 = y0 + r.height;
+            final long n = (long) count[y1 * stride + x1] - count[y0 * stride + x1]
+                    - count[y1 * stride + x0] + count[y0 * stride + x0];
+            if (n == 0)
+                return null;
+            
+            final int cx0 = x0 / CELL;
+            final int cy0 = y0 / CELL;
+            final int cx1 = (x1 + CELL - 1) / CELL;
+            final int cy1 = (y1 + CELL - 1) / CELL;
+            final int cellStride = cellCols + 1;
+            final long[] hx = new long[MEDIAN_BINS];
+            final long[] hy = new long[MEDIAN_BINS];
+            for (int b = 0; b < MEDIAN_BINS; ++b) {
+                hx[b] = sum(histX, cellStride, MEDIAN_BINS, b, cx0, cy0, cx1, cy1);
+                hy[b] = sum(histY, cellStride, MEDIAN_BINS, b, cx0, cy0, cx1, cy1);
+            }
+            int dominant = 0;
+            double most = -1;
+            for (int b = 0; b < DIRECTIONS; ++b) {
+                final double share = sum(dirs, cellStride, DIRECTIONS, b, cx0, cy0, cx1, cy1);
+                if (share > most) {
+                    most = share;
+                    dominant = b;
+                }
+            }
+            final double direction = most > 0
+                    ? Math.toDegrees((dominant + 0.5) * 2 * Math.PI / DIRECTIONS - Math.PI)
+                    : Double.NaN;
+            
+            return new RegionMotion(
+                    sum(sumX, stride, 1, 0, x0, y0, x1, y1) / n,
+                    sum(sumY, stride, 1, 0, x0, y0, x1, y1) / n,
+                    median(hx, minX, binX), median(hy, minY, binY),
+                    sum(sumMag, stride, 1, 0, x0, y0, x1, y1) / n,
+                    direction, n);
+        }
+        
+        // interpolated inside the bin holding the middle value
+        static private double median(final long[] hist, final float min, final float width) {
+            long total = 0;
+            for (final long c : hist)
+                total += c;
+            final double target = total / 2.0;
+            long below = 0;
+            for (int b = 0; b < hist.length; ++b) {
+                if (hist[b] > 0 && below + hist[b] >= target)
+                    return min + width * (b + (target - below) / hist[b]);
+                below += hist[b];
+            }
+            return min;
+        }
     }
-
+    
 //############################################################################    
 //############################################################################
 // Vector
@@ -677,12 +4023,17 @@ public class Flowig_ implements PlugIn {
 // opencv <-> imagej
 //############################################################################
 //############################################################################
+// ImageJ keeps RGB pixels as packed 0xAARRGGBB ints, which on little endian
+// machines have the same memory layout as an 8 bit BGRA Mat. Pixel arrays
+// live on the java heap, so they are moved with a single bulk copy each way.
+    static final boolean BGRA_LAYOUT = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    
     static public ImagePlus toImagePlus(final Mat mat, final String title) {
-        Java2DFrameConverter javaConverter = new Java2DFrameConverter();
-        OpenCVFrameConverter.ToMat matConverter = new OpenCVFrameConverter.ToMat();
-        final Frame frame = matConverter.convert(mat);
-        final BufferedImage buffImage = javaConverter.convert(frame);
-        return new ImagePlus(title, buffImage);
+        final ImageProcessor ip = toProcessor(mat);
+        if (ip == null) {
+            return toImagePlusConverter(mat, title);
+        }
+        return new ImagePlus(title, ip);
     }
     
     static public ImagePlus toImagePlus(final Mat mat) {
@@ -690,13 +4041,103 @@ public class Flowig_ implements PlugIn {
     }
     
     static public Mat toMat(final ImagePlus imagePlus) {
+        final Mat mat = toMat(imagePlus.getProcessor());
+        if (mat == null) {
+            return toMatConverter(imagePlus);
+        }
+        return mat;
+    }
+    
+// ######## ImageProcessor -> Mat (BGR for RGB images, gray for 8 bit)
+    // returns null for processors without a direct mapping
+    static public Mat toMat(final ImageProcessor ip) {
+        final int w = ip.getWidth();
+        final int h = ip.getHeight();
+        if (ip instanceof ColorProcessor && BGRA_LAYOUT) {
+            Mat bgra = new Mat(h, w, opencv_core.CV_8UC4);
+            new IntPointer(bgra.data()).put((int[]) ip.getPixels());
+            Mat bgr = new Mat();
+            opencv_imgproc.cvtColor(bgra, bgr, opencv_imgproc.COLOR_BGRA2BGR);
+            bgra.release();
+            return bgr;
+        }
+        if (ip instanceof ByteProcessor) {
+            Mat gray = new Mat(h, w, opencv_core.CV_8UC1);
+            gray.data().put((byte[]) ip.getPixels());
+            return gray;
+        }
+        return null;
+    }
+    
+// ######## Mat -> ImageProcessor (BGR/BGRA to RGB, 1 channel to 8 bit)
+    // returns null for mats without a direct mapping
+    static public ImageProcessor toProcessor(final Mat mat) {
+        if (mat.depth() != opencv_core.CV_8U) {
+            return null;
+        }
+        switch (mat.channels()) {
+            case 1: {
+                ByteProcessor ip = new ByteProcessor(mat.cols(), mat.rows());
+                copyTo(mat, (byte[]) ip.getPixels());
+                return ip;
+            }
+            case 3:
+            case 4: {
+                if (!BGRA_LAYOUT) {
+                    return null;
+                }
+                ColorProcessor ip = new ColorProcessor(mat.cols(), mat.rows());
+                toColorProcessor(mat, ip);
+                return ip;
+            }
+            default:
+                return null;
+        }
+    }
+    
+// ######## write an 8 bit BGR/BGRA Mat into an existing ColorProcessor
+    static public void toColorProcessor(final Mat mat, final ColorProcessor ip) {
+        Mat bgra = mat;
+        if (mat.channels() == 3) {
+            bgra = new Mat(mat.rows(), mat.cols(), opencv_core.CV_8UC4);
+            opencv_imgproc.cvtColor(mat, bgra, opencv_imgproc.COLOR_BGR2BGRA);
+        } else if (!mat.isContinuous()) {
+            bgra = mat.clone();
+        }
+        new IntPointer(bgra.data()).get((int[]) ip.getPixels());
+        if (bgra != mat) {
+            bgra.release();
+        }
+    }
+    
+    static private void copyTo(final Mat mat, final byte[] pixels) {
+        if (mat.isContinuous()) {
+            mat.data().get(pixels);
+            return;
+        }
+        final int w = mat.cols();
+        for (int y = 0; y < mat.rows(); ++y) {
+            mat.ptr(y).get(pixels, y * w, w);
+        }
+    }
+    
+// ######## generic path through BufferedImage and JavaCV frames
+    static public ImagePlus toImagePlusConverter(final Mat mat, final String title) {
+        Java2DFrameConverter javaConverter = new Java2DFrameConverter();
+        OpenCVFrameConverter.ToMat matConverter = new OpenCVFrameConverter.ToMat();
+        final Frame frame = matConverter.convert(mat);
+        final BufferedImage buffImage = javaConverter.convert(frame);
+        return new ImagePlus(title, buffImage);
+    }
+    
+    static public Mat toMatConverter(final ImagePlus imagePlus) {
         Java2DFrameConverter javaConverter = new Java2DFrameConverter();
         OpenCVFrameConverter.ToMat matConverter = new OpenCVFrameConverter.ToMat();
         final BufferedImage image = imagePlus.getBufferedImage();        
         final Frame frame = javaConverter.convert(image);
         return matConverter.convert(frame);
     }
-
+    
 //############################################################################
     
 //############################################################################